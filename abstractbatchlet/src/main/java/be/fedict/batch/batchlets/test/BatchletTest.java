@@ -51,8 +51,21 @@ public abstract class BatchletTest {
 	 * @return 
 	 */
 	protected JobExecutionImpl startBatchletJob(String batchlet, Properties props) throws InterruptedException {
+		return startBatchletJob(batchlet, props, false);
+	}
+
+	/**
+	 * Define a batchlet job and start with specific set of properties
+	 * 
+	 * @param batchlet
+	 * @param props
+	 * @param restartable allow restarting a failed or stopped execution
+	 * @return 
+	 */
+	protected JobExecutionImpl startBatchletJob(String batchlet, Properties props, boolean restartable) 
+			throws InterruptedException {
 		Job job = new JobBuilder("job")
-					.restartable(false)
+					.restartable(restartable)
 					.step(new StepBuilder("step")
 								.batchlet(batchlet, props)
 								.failOn(BatchStatus.FAILED.toString()).exitStatus(BatchStatus.FAILED.toString())
@@ -62,4 +75,16 @@ public abstract class BatchletTest {
 		long id = operator.start(job, null);
 		return (JobExecutionImpl) operator.getJobExecution(id);
 	}
+
+	/**
+	 * Restart a failed or stopped execution of a restartable job,
+	 * the step continues with the persistent user data of the previous execution
+	 * 
+	 * @param execution
+	 * @return 
+	 */
+	protected JobExecutionImpl restartBatchletJob(JobExecutionImpl execution) {
+		long id = operator.restart(execution.getExecutionId(), null);
+		return (JobExecutionImpl) operator.getJobExecution(id);
+	}
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.common;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Write files atomically: write to a temporary file in the same directory, and move it into place when done,
+ * so other processes never see a partially written file.
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+public final class AtomicFiles {
+	/**
+	 * Create a (hidden) temporary file in the same directory as the target file.
+	 * Unlike Files.createTempFile, the file gets the default permissions (umask) of a regular file.
+	 * 
+	 * @param target target file
+	 * @return path to temporary file
+	 * @throws IOException 
+	 */
+	public static Path createTemp(Path target) throws IOException {
+		Path dir = target.toAbsolutePath().getParent();
+		String prefix = "." + target.getFileName().toString() + ".";
+		while (true) {
+			Path temp = dir.resolve(prefix + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+			try {
+				return Files.createFile(temp);
+			} catch (FileAlreadyExistsException e) {
+				// try another name
+			}
+		}
+	}
+
+	/**
+	 * Copy the POSIX permissions of an existing target file to the temporary file, if possible
+	 * 
+	 * @param temp temporary file
+	 * @param target target file
+	 * @throws IOException 
+	 */
+	private static void copyPermissions(Path temp, Path target) throws IOException {
+		if (!Files.exists(target) 
+				|| !target.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			return;
+		}
+		Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+	}
+
+	/**
+	 * Flush the contents of a file to disk
+	 * 
+	 * @param file file
+	 * @throws IOException 
+	 */
+	public static void sync(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Move a temporary file into place, replacing the target file.
+	 * The permissions of an existing target file are kept.
+	 * Falls back to a non-atomic move if the file system does not support atomic moves.
+	 * 
+	 * @param temp temporary file
+	 * @param target target file
+	 * @param sync flush the contents to disk before moving
+	 * @throws IOException 
+	 */
+	public static void commit(Path temp, Path target, boolean sync) throws IOException {
+		if (sync) {
+			sync(temp);
+		}
+		copyPermissions(temp, target);
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private AtomicFiles() {
+	}
+}
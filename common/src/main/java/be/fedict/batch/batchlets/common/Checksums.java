@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 and SHA-256 checksums, calculated while the data is being written
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+public class Checksums {
+	private final CRC32 crc = new CRC32();
+	private final MessageDigest sha;
+	private String sha256;
+
+	/**
+	 * Add data to the checksums
+	 * 
+	 * @param b buffer
+	 * @param off offset
+	 * @param len number of bytes
+	 */
+	public void update(byte[] b, int off, int len) {
+		crc.update(b, off, len);
+		sha.update(b, off, len);
+	}
+
+	/**
+	 * Get the CRC32 checksum as hexadecimal string
+	 * 
+	 * @return checksum
+	 */
+	public String getCrc32() {
+		return String.format("%08x", crc.getValue());
+	}
+
+	/**
+	 * Get the SHA-256 hash as hexadecimal string.
+	 * No more data can be added afterwards.
+	 * 
+	 * @return hash
+	 */
+	public String getSha256() {
+		if (sha256 == null) {
+			StringBuilder sb = new StringBuilder(64);
+			for (byte b: sha.digest()) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			sha256 = sb.toString();
+		}
+		return sha256;
+	}
+
+	/**
+	 * Calculate the checksums of an existing file
+	 * 
+	 * @param file file
+	 * @param buffer buffer to read the file with
+	 * @return checksums
+	 * @throws IOException 
+	 */
+	public static Checksums of(Path file, byte[] buffer) throws IOException {
+		Checksums sums = new Checksums();
+		try (InputStream in = Files.newInputStream(file)) {
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				sums.update(buffer, 0, n);
+			}
+		}
+		return sums;
+	}
+
+	/**
+	 * Constructor
+	 */
+	public Checksums() {
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
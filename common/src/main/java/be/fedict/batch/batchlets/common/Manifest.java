@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.common;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Manifest of files with their size, checksums and modification time.
+ * The manifest is a UTF-8 text file, with one tab-separated line per file:
+ * size, modification time (milliseconds since epoch), CRC32, SHA-256 and the relative path.
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+public class Manifest {
+	private static final String HEADER = "#size\tmodified\tcrc32\tsha256\tpath";
+
+	private final Map<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+	/**
+	 * File in the manifest
+	 */
+	public static class Entry {
+		private final long size;
+		private final long modified;
+		private final String crc32;
+		private final String sha256;
+
+		/**
+		 * Get the size
+		 * 
+		 * @return size in bytes
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Get the modification time
+		 * 
+		 * @return milliseconds since epoch
+		 */
+		public long getModified() {
+			return modified;
+		}
+
+		/**
+		 * Get the CRC32 checksum
+		 * 
+		 * @return hexadecimal string
+		 */
+		public String getCrc32() {
+			return crc32;
+		}
+
+		/**
+		 * Get the SHA-256 hash
+		 * 
+		 * @return hexadecimal string
+		 */
+		public String getSha256() {
+			return sha256;
+		}
+
+		/**
+		 * Constructor
+		 * 
+		 * @param size size in bytes
+		 * @param modified modification time
+		 * @param crc32 CRC32 checksum
+		 * @param sha256 SHA-256 hash
+		 */
+		public Entry(long size, long modified, String crc32, String sha256) {
+			this.size = size;
+			this.modified = modified;
+			this.crc32 = crc32;
+			this.sha256 = sha256;
+		}
+	}
+
+	/**
+	 * Add or replace a file
+	 * 
+	 * @param path relative path, using '/' as separator
+	 * @param entry size, checksums and modification time
+	 */
+	public void put(String path, Entry entry) {
+		entries.put(path, entry);
+	}
+
+	/**
+	 * Get a file
+	 * 
+	 * @param path relative path
+	 * @return entry or null if not in the manifest
+	 */
+	public Entry get(String path) {
+		return entries.get(path);
+	}
+
+	/**
+	 * Get all files, sorted by path
+	 * 
+	 * @return map of paths and entries
+	 */
+	public Map<String, Entry> getEntries() {
+		return Collections.unmodifiableMap(entries);
+	}
+
+	/**
+	 * Write the manifest atomically
+	 * 
+	 * @param file manifest file
+	 * @throws IOException 
+	 */
+	public void write(Path file) throws IOException {
+		Path temp = AtomicFiles.createTemp(file);
+		try {
+			try (BufferedWriter w = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				w.write(HEADER);
+				w.newLine();
+				for (Map.Entry<String, Entry> e: entries.entrySet()) {
+					Entry v = e.getValue();
+					w.write(v.size + "\t" + v.modified + "\t" + v.crc32 + "\t" + v.sha256 + "\t" + e.getKey());
+					w.newLine();
+				}
+			}
+			AtomicFiles.commit(temp, file, false);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Read a manifest
+	 * 
+	 * @param file manifest file
+	 * @return manifest
+	 * @throws IOException 
+	 */
+	public static Manifest read(Path file) throws IOException {
+		Manifest manifest = new Manifest();
+		try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\t", 5);
+				if (parts.length != 5) {
+					throw new IOException("Invalid line in manifest " + file + ": " + line);
+				}
+				try {
+					manifest.put(parts[4], new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), 
+														parts[2], parts[3]));
+				} catch (NumberFormatException nfe) {
+					throw new IOException("Invalid line in manifest " + file + ": " + line);
+				}
+			}
+		}
+		return manifest;
+	}
+}
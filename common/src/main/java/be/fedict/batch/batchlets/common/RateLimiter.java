@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Token bucket limiting the number of bytes per second.
+ * 
+ * Callers take tokens after they received data, and may run into debt:
+ * later callers then have to wait until the debt is paid off, which spreads
+ * the bandwidth fairly over concurrent transfers.
+ * 
+ * A JVM-wide budget, shared by all batchlets, can be set with the system property
+ * be.fedict.batch.maxBytesPerSecond.
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+public class RateLimiter {
+	private static final Logger logger = Logger.getLogger(RateLimiter.class.getName());
+
+	public static final String SHARED_PROPERTY = "be.fedict.batch.maxBytesPerSecond";
+
+	private static final RateLimiter SHARED = createShared();
+
+	private final long rate;
+	private double tokens;
+	private long last;
+
+	/**
+	 * Create the JVM-wide limiter, if the system property is set
+	 * 
+	 * @return rate limiter or null
+	 */
+	private static RateLimiter createShared() {
+		String prop = System.getProperty(SHARED_PROPERTY);
+		if (prop == null || prop.isBlank()) {
+			return null;
+		}
+		try {
+			long max = Long.parseLong(prop.strip());
+			if (max > 0) {
+				logger.log(Level.INFO, "Shared bandwidth limited to {0} bytes per second", max);
+				return new RateLimiter(max);
+			}
+		} catch (NumberFormatException nfe) {
+			logger.log(Level.WARNING, "Invalid value for {0}: {1}", new String[] { SHARED_PROPERTY, prop });
+		}
+		return null;
+	}
+
+	/**
+	 * Get the limiters to apply to a transfer: one for the batchlet itself (if any)
+	 * and the JVM-wide limiter (if any)
+	 * 
+	 * @param maxBytesPerSecond limit of the batchlet, null or 0 for unlimited
+	 * @return list of limiters, possibly empty
+	 */
+	public static List<RateLimiter> limiters(Long maxBytesPerSecond) {
+		List<RateLimiter> limiters = new ArrayList<>(2);
+		if (maxBytesPerSecond != null && maxBytesPerSecond > 0) {
+			limiters.add(new RateLimiter(maxBytesPerSecond));
+		}
+		if (SHARED != null) {
+			limiters.add(SHARED);
+		}
+		return limiters;
+	}
+
+	/**
+	 * Take a number of tokens from the bucket, waiting if the bucket is in debt
+	 * 
+	 * @param n number of bytes
+	 * @throws InterruptedException 
+	 */
+	public void acquire(long n) throws InterruptedException {
+		if (n <= 0) {
+			return;
+		}
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			// refill, allowing bursts of at most one second
+			// (in floating point, a long idle time multiplied by the rate overflows)
+			tokens = Math.min(rate, tokens + (now - last) / 1e9 * rate);
+			last = now;
+			tokens -= n;
+			wait = (tokens < 0) ? (long) (-tokens * 1e9 / rate) : 0;
+		}
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param rate maximum number of bytes per second
+	 */
+	public RateLimiter(long rate) {
+		this(rate, System.nanoTime());
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param rate maximum number of bytes per second
+	 * @param last time of the last refill, in nanoseconds
+	 */
+	RateLimiter(long rate, long last) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("Rate must be positive");
+		}
+		this.rate = rate;
+		this.tokens = rate;
+		this.last = last;
+	}
+}
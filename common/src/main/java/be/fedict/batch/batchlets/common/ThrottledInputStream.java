@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.common;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+/**
+ * Input stream slowing down reads to stay within the limits of one or more rate limiters
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+public class ThrottledInputStream extends FilterInputStream {
+	private final List<RateLimiter> limiters;
+
+	/**
+	 * Wait until the limiters allow the bytes read
+	 * 
+	 * @param n number of bytes
+	 * @throws InterruptedIOException 
+	 */
+	private void throttle(int n) throws InterruptedIOException {
+		try {
+			for (RateLimiter limiter: limiters) {
+				limiter.acquire(n);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while throttling");
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0) {
+			throttle(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		throttle(n);
+		return n;
+	}
+
+	/**
+	 * Wrap an input stream, unless there are no limiters
+	 * 
+	 * @param in input stream
+	 * @param limiters rate limiters
+	 * @return input stream
+	 */
+	public static InputStream wrap(InputStream in, List<RateLimiter> limiters) {
+		return limiters.isEmpty() ? in : new ThrottledInputStream(in, limiters);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param in input stream
+	 * @param limiters rate limiters
+	 */
+	public ThrottledInputStream(InputStream in, List<RateLimiter> limiters) {
+		super(in);
+		this.limiters = limiters;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.common;
+
+import java.io.Serializable;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.batch.runtime.context.StepContext;
+
+/**
+ * Metrics of a single transfer: bytes, elapsed time, time to first byte and throughput.
+ * Bytes can be added from multiple threads.
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+public class TransferMetrics {
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong firstByte = new AtomicLong();
+	private final long start;
+	private volatile long end;
+
+	/**
+	 * Add a number of transferred bytes
+	 * 
+	 * @param n number of bytes
+	 */
+	public void add(long n) {
+		if (n > 0) {
+			firstByte.compareAndSet(0, System.nanoTime());
+			bytes.addAndGet(n);
+		}
+	}
+
+	/**
+	 * Mark the transfer as finished
+	 */
+	public void finish() {
+		end = System.nanoTime();
+	}
+
+	/**
+	 * Get the number of bytes transferred
+	 * 
+	 * @return bytes
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Get the elapsed time, until now if the transfer is not finished yet
+	 * 
+	 * @return time in milliseconds
+	 */
+	public long getElapsedMillis() {
+		long stop = (end != 0) ? end : System.nanoTime();
+		return (stop - start) / 1_000_000;
+	}
+
+	/**
+	 * Get the time to first byte
+	 * 
+	 * @return time in milliseconds or -1 when nothing was transferred
+	 */
+	public long getFirstByteMillis() {
+		long first = firstByte.get();
+		return (first != 0) ? (first - start) / 1_000_000 : -1;
+	}
+
+	/**
+	 * Get the throughput
+	 * 
+	 * @return megabytes per second
+	 */
+	public double getMBPerSecond() {
+		long millis = getElapsedMillis();
+		return (millis > 0) ? (getBytes() / 1_048_576.0) / (millis / 1000.0) : 0;
+	}
+
+	/**
+	 * Get a one-line summary
+	 * 
+	 * @return summary
+	 */
+	public String getSummary() {
+		String summary = String.format(Locale.ROOT, "%d bytes in %.3f s (%.2f MB/s)",
+					getBytes(), getElapsedMillis() / 1000.0, getMBPerSecond());
+		long first = getFirstByteMillis();
+		return (first < 0) ? summary : summary + ", first byte after " + first + " ms";
+	}
+
+	/**
+	 * Store the metrics in the persistent user data of the step.
+	 * If the user data is a properties object, the metrics are added to it.
+	 * 
+	 * @param ctx step context
+	 */
+	public void publish(StepContext ctx) {
+		Serializable data = ctx.getPersistentUserData();
+		Properties props = (data instanceof Properties) ? (Properties) data : new Properties();
+		props.setProperty("metrics.bytes", String.valueOf(getBytes()));
+		props.setProperty("metrics.elapsedMillis", String.valueOf(getElapsedMillis()));
+		props.setProperty("metrics.firstByteMillis", String.valueOf(getFirstByteMillis()));
+		props.setProperty("metrics.mbPerSecond", String.format(Locale.ROOT, "%.2f", getMBPerSecond()));
+		ctx.setPersistentUserData(props);
+	}
+
+	/**
+	 * Constructor, starts measuring
+	 */
+	public TransferMetrics() {
+		start = System.nanoTime();
+	}
+}
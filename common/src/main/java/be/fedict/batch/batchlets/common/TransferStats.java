@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Cumulative transfer statistics per type of batchlet, registered as MXBean
+ * (be.fedict.batch:type=TransferStats,name=...)
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+public class TransferStats implements TransferStatsMXBean {
+	private static final Logger logger = Logger.getLogger(TransferStats.class.getName());
+
+	private static final Map<String, TransferStats> STATS = new ConcurrentHashMap<>();
+
+	private final AtomicLong transfers = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong elapsed = new AtomicLong();
+	private volatile double lastRate;
+	private volatile long lastFirstByte;
+
+	/**
+	 * Get the statistics for a type of batchlet, registering the MXBean on first use
+	 * 
+	 * @param name name of the batchlet
+	 * @return statistics
+	 */
+	public static TransferStats get(String name) {
+		return STATS.computeIfAbsent(name, n -> {
+			TransferStats stats = new TransferStats();
+			try {
+				ObjectName on = new ObjectName("be.fedict.batch:type=TransferStats,name=" + ObjectName.quote(n));
+				if (!ManagementFactory.getPlatformMBeanServer().isRegistered(on)) {
+					ManagementFactory.getPlatformMBeanServer().registerMBean(stats, on);
+				}
+			} catch (JMException e) {
+				logger.log(Level.WARNING, "Could not register MXBean {0}", e.getMessage());
+			}
+			return stats;
+		});
+	}
+
+	/**
+	 * Add the metrics of a finished transfer
+	 * 
+	 * @param metrics metrics
+	 */
+	public void add(TransferMetrics metrics) {
+		transfers.incrementAndGet();
+		bytes.addAndGet(metrics.getBytes());
+		elapsed.addAndGet(metrics.getElapsedMillis());
+		lastRate = metrics.getMBPerSecond();
+		lastFirstByte = metrics.getFirstByteMillis();
+	}
+
+	@Override
+	public long getTransfers() {
+		return transfers.get();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	@Override
+	public long getElapsedMillis() {
+		return elapsed.get();
+	}
+
+	@Override
+	public double getLastMBPerSecond() {
+		return lastRate;
+	}
+
+	@Override
+	public long getLastFirstByteMillis() {
+		return lastFirstByte;
+	}
+}
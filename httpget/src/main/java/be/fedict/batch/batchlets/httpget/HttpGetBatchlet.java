@@ -25,24 +25,65 @@
  */
 package be.fedict.batch.batchlets.httpget;
 
+import be.fedict.batch.batchlets.common.AtomicFiles;
+import be.fedict.batch.batchlets.common.MeteredInputStream;
+import be.fedict.batch.batchlets.common.RateLimiter;
+import be.fedict.batch.batchlets.common.ThrottledInputStream;
+import be.fedict.batch.batchlets.common.TransferMetrics;
+import be.fedict.batch.batchlets.common.TransferStats;
+
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import javax.batch.api.AbstractBatchlet;
 import javax.batch.api.BatchProperty;
 import javax.batch.runtime.BatchStatus;
+import javax.batch.runtime.context.StepContext;
 import javax.inject.Inject;
 import javax.inject.Named;
-import javax.validation.constraints.NotBlank;
-import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
 
 /**
- * Download or upload a file via SFTP (not both)
+ * Download one or more files via HTTP(S), optionally using multiple connections
  * 
  * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
  */
@@ -50,27 +91,954 @@ import javax.validation.constraints.NotNull;
 public class HttpGetBatchlet extends AbstractBatchlet {
 	private static final Logger logger = Logger.getLogger(HttpGetBatchlet.class.getName());
 
+	public static final String UNCHANGED = "UNCHANGED";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int HTTP_OK = 200;
+	private static final int HTTP_PARTIAL = 206;
+	private static final int HTTP_NOT_MODIFIED = 304;
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+	private static final long NOT_MODIFIED = -2;
+
 	@Inject 
 	@BatchProperty
-	@NotNull
-	@NotBlank
 	URL fromURL;
 	
 	@Inject 
 	@BatchProperty
-	@NotNull
-	@NotBlank
 	File toFile;
 
-	@Override
-	public String process() throws Exception {
-		logger.log(Level.INFO, "Getting from {0}", fromURL.toString());
-		try(InputStream is = fromURL.openStream();
-			OutputStream os = Files.newOutputStream(toFile.toPath(), 
+	@Inject 
+	@BatchProperty
+	String fromURLs;
+
+	@Inject 
+	@BatchProperty
+	File manifest;
+
+	@Inject 
+	@BatchProperty
+	File toDir;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Integer parallel;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Integer connections;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Long chunkSize;
+
+	@Inject 
+	@BatchProperty
+	boolean resume;
+
+	@Inject 
+	@BatchProperty
+	boolean conditional;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Integer connectTimeout;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Integer readTimeout;
+
+	@Inject 
+	@BatchProperty
+	Boolean http2;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Long maxBytesPerSecond;
+
+	@Inject 
+	@BatchProperty
+	boolean atomic;
+
+	@Inject 
+	@BatchProperty
+	boolean fsync;
+
+	@Inject 
+	@BatchProperty
+	boolean compressed;
+
+	@Inject 
+	@BatchProperty
+	boolean keepCompressed;
+
+	@Inject 
+	@BatchProperty
+	String checksumAlgorithm;
+
+	@Inject 
+	@BatchProperty
+	String expectedChecksum;
+
+	@Inject 
+	@BatchProperty
+	URL checksumUrl;
+
+	@Inject
+	StepContext stepContext;
+
+	private final Set<ExecutorService> executors = ConcurrentHashMap.newKeySet();
+
+	private HttpClient client;
+	private HttpClient rangeClient;
+	private Map<String, String> checksums;
+	private TransferMetrics metrics;
+	private List<RateLimiter> limiters;
+
+	private boolean checkParameters() {
+		if (fromURL == null && fromURLs == null && manifest == null) {
+			logger.severe("Missing source URL(s)");
+			return false;
+		}
+		if (fromURL != null && (fromURLs != null || manifest != null)) {
+			logger.severe("fromURL cannot be combined with fromURLs or manifest");
+			return false;
+		}
+		if (fromURL != null && toFile == null) {
+			logger.severe("Missing destination file");
+			return false;
+		}
+		if (fromURL == null && toDir == null) {
+			logger.severe("Missing destination directory");
+			return false;
+		}
+		if (keepCompressed && !compressed) {
+			logger.severe("keepCompressed requires compressed");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Create a request builder, setting the read timeout for the response headers
+	 * 
+	 * @param uri URI
+	 * @return request builder
+	 */
+	private HttpRequest.Builder newRequest(URI uri) {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+		if (readTimeout != null) {
+			builder.timeout(Duration.ofSeconds(readTimeout));
+		}
+		return builder;
+	}
+
+	/**
+	 * Get the metadata file stored next to the downloaded file
+	 * 
+	 * @param file downloaded file
+	 * @return path
+	 */
+	private static Path getMetaFile(Path file) {
+		return Paths.get(file.toString() + ".meta");
+	}
+
+	/**
+	 * Get the part file used for resumable downloads
+	 * 
+	 * @param file downloaded file
+	 * @return path
+	 */
+	private static Path getPartFile(Path file) {
+		return Paths.get(file.toString() + ".part");
+	}
+
+	/**
+	 * Read the metadata of the previous download, if the file still matches it
+	 * 
+	 * @param file downloaded file
+	 * @return metadata or null
+	 * @throws IOException 
+	 */
+	private static Properties readMeta(Path file) throws IOException {
+		Path p = getMetaFile(file);
+		if (!Files.exists(p) || !Files.exists(file)) {
+			return null;
+		}
+		Properties m = new Properties();
+		try (InputStream is = Files.newInputStream(p)) {
+			m.load(is);
+		}
+		if (!String.valueOf(Files.size(file)).equals(m.getProperty("Content-Length"))) {
+			logger.log(Level.INFO, "Size of {0} does not match metadata", file);
+			return null;
+		}
+		return m;
+	}
+
+	/**
+	 * Write the metadata of the downloaded file
+	 * 
+	 * @param uri source URI
+	 * @param file downloaded file
+	 * @param headers response headers
+	 * @throws IOException 
+	 */
+	private static void writeMeta(URI uri, Path file, HttpHeaders headers) throws IOException {
+		Properties m = new Properties();
+		headers.firstValue("ETag").ifPresent(v -> m.setProperty("ETag", v));
+		headers.firstValue("Last-Modified").ifPresent(v -> m.setProperty("Last-Modified", v));
+		m.setProperty("Content-Length", String.valueOf(Files.size(file)));
+		try (OutputStream os = Files.newOutputStream(getMetaFile(file))) {
+			m.store(os, uri.toString());
+		}
+	}
+
+	/**
+	 * Add conditional headers based on the metadata of the previous download
+	 * 
+	 * @param builder request builder
+	 * @param meta metadata or null
+	 */
+	private static void addConditions(HttpRequest.Builder builder, Properties meta) {
+		if (meta == null) {
+			return;
+		}
+		String tag = meta.getProperty("ETag");
+		if (tag != null) {
+			builder.header("If-None-Match", tag);
+		}
+		String modified = meta.getProperty("Last-Modified");
+		if (modified != null) {
+			builder.header("If-Modified-Since", modified);
+		}
+	}
+
+	/**
+	 * Get the validator (strong ETag or Last-Modified) of the response
+	 * 
+	 * @param headers response headers
+	 * @return validator or null
+	 */
+	private static String getValidator(HttpHeaders headers) {
+		String etag = headers.firstValue("ETag").orElse(null);
+		if (etag != null && !etag.startsWith("W/")) {
+			return etag;
+		}
+		return headers.firstValue("Last-Modified").orElse(null);
+	}
+
+	/**
+	 * Check if the server supports byte ranges, and get the size of the file
+	 * 
+	 * @param uri URI
+	 * @param meta metadata or null
+	 * @param headers array to store the response headers in
+	 * @return size of the file, -1 when ranges are not supported or -2 when not modified
+	 * @throws IOException 
+	 * @throws InterruptedException 
+	 */
+	private long probeRanges(URI uri, Properties meta, HttpHeaders[] headers) 
+											throws IOException, InterruptedException {
+		HttpRequest.Builder builder = newRequest(uri).method("HEAD", HttpRequest.BodyPublishers.noBody());
+		addConditions(builder, meta);
+
+		HttpResponse<Void> response = client.send(builder.build(), HttpResponse.BodyHandlers.discarding());
+		if (response.statusCode() == HTTP_NOT_MODIFIED) {
+			return NOT_MODIFIED;
+		}
+		if (response.statusCode() != HTTP_OK) {
+			return -1;
+		}
+		headers[0] = response.headers();
+		String ranges = response.headers().firstValue("Accept-Ranges").orElse("");
+		if (!ranges.trim().equalsIgnoreCase("bytes")) {
+			return -1;
+		}
+		return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+	}
+
+	/**
+	 * Check the status code of a response
+	 * 
+	 * @param response response
+	 * @throws IOException when the status is not OK
+	 */
+	private static void checkStatus(HttpResponse<InputStream> response, int... expected) throws IOException {
+		for (int code: expected) {
+			if (response.statusCode() == code) {
+				return;
+			}
+		}
+		response.body().close();
+		throw new IOException("Server returned status " + response.statusCode() + " for " + response.uri());
+	}
+
+	/**
+	 * Get the response body, counting the bytes received and limiting the bandwidth.
+	 * The read timeout also applies to each read of the body.
+	 * 
+	 * @param response response
+	 * @return input stream
+	 */
+	private InputStream body(HttpResponse<InputStream> response) {
+		InputStream in = response.body();
+		if (readTimeout != null) {
+			in = new ReadTimeoutInputStream(in, Duration.ofSeconds(readTimeout));
+		}
+		return ThrottledInputStream.wrap(new MeteredInputStream(in, metrics), limiters);
+	}
+
+	/**
+	 * Decompress a deflate encoded stream.
+	 * The data should be zlib wrapped, but some servers send raw deflate data instead.
+	 * 
+	 * @param in input stream
+	 * @return decompressed stream
+	 * @throws IOException 
+	 */
+	private static InputStream inflate(InputStream in) throws IOException {
+		PushbackInputStream pin = new PushbackInputStream(in, 2);
+		byte[] header = new byte[2];
+		int len = pin.readNBytes(header, 0, 2);
+		pin.unread(header, 0, len);
+
+		int cmf = header[0] & 0xFF;
+		int flg = header[1] & 0xFF;
+		boolean zlib = (len == 2) && (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+
+		Inflater inflater = new Inflater(!zlib);
+		return new InflaterInputStream(pin, inflater, BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Record in the step's persistent user data that a file was not sent compressed
+	 * 
+	 * @param uri URI
+	 */
+	private synchronized void markUncompressed(URI uri) {
+		Properties state = getState();
+		state.setProperty("uncompressed." + uri, "true");
+		stepContext.setPersistentUserData(state);
+	}
+
+	/**
+	 * Decode the response body according to its content encoding,
+	 * unless the compressed form is to be kept on disk.
+	 * The caller remains responsible for closing the body, also when decoding fails.
+	 * 
+	 * @param response response
+	 * @param body response body
+	 * @return (decoded) input stream
+	 * @throws IOException 
+	 */
+	private InputStream decode(HttpResponse<InputStream> response, InputStream body) throws IOException {
+		String encoding = response.headers().firstValue("Content-Encoding").orElse("identity").trim();
+		if (encoding.equalsIgnoreCase("identity")) {
+			if (keepCompressed) {
+				logger.log(Level.WARNING, "Server did not compress {0}, stored uncompressed", response.uri());
+				markUncompressed(response.uri());
+			}
+			return body;
+		}
+		if (keepCompressed) {
+			return body;
+		}
+		if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")) {
+			return new GZIPInputStream(body, BUFFER_SIZE);
+		}
+		if (encoding.equalsIgnoreCase("deflate")) {
+			return inflate(body);
+		}
+		throw new IOException("Unsupported content encoding " + encoding);
+	}
+
+	/**
+	 * Download the file using a single connection
+	 * 
+	 * @param uri URI
+	 * @param file destination file
+	 * @param meta metadata or null
+	 * @param digest message digest or null
+	 * @return response headers or null if not modified
+	 * @throws IOException 
+	 * @throws InterruptedException 
+	 */
+	private HttpHeaders getSingle(URI uri, Path file, Properties meta, MessageDigest digest) 
+											throws IOException, InterruptedException {
+		HttpRequest.Builder builder = newRequest(uri);
+		addConditions(builder, meta);
+		if (compressed) {
+			builder.header("Accept-Encoding", "gzip, deflate");
+		}
+
+		HttpResponse<InputStream> response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+		if (response.statusCode() == HTTP_NOT_MODIFIED) {
+			response.body().close();
+			return null;
+		}
+		checkStatus(response, HTTP_OK);
+
+		try(InputStream body = body(response);
+			InputStream decoded = decode(response, body);
+			InputStream is = (digest != null) ? new DigestInputStream(decoded, digest) : decoded;
+			OutputStream os = Files.newOutputStream(file, 
 				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) ) {
 			is.transferTo(os);
 		}
-		return BatchStatus.COMPLETED.toString();
+		return response.headers();
+	}
+
+	/**
+	 * Download a byte range and write it at the same position in the file.
+	 * The range is only accepted when the file did not change since the size was probed.
+	 * 
+	 * @param uri URI
+	 * @param channel file channel
+	 * @param start first byte
+	 * @param end last byte (inclusive)
+	 * @param size size of the file
+	 * @param validator ETag or Last-Modified of the probed file, or null
+	 * @throws IOException 
+	 * @throws InterruptedException 
+	 */
+	private void getRange(URI uri, FileChannel channel, long start, long end, long size, String validator) 
+											throws IOException, InterruptedException {
+		HttpRequest.Builder builder = newRequest(uri).header("Range", "bytes=" + start + "-" + end);
+		if (validator != null) {
+			// server returns the entire file instead of the range when the file was modified
+			builder.header("If-Range", validator);
+		}
+
+		HttpResponse<InputStream> response = rangeClient.send(builder.build(), 
+															HttpResponse.BodyHandlers.ofInputStream());
+		if (response.statusCode() == HTTP_OK) {
+			response.body().close();
+			throw new IOException(uri + " was modified during the download");
+		}
+		checkStatus(response, HTTP_PARTIAL);
+
+		String range = response.headers().firstValue("Content-Range").orElse("");
+		String expected = "bytes " + start + "-" + end + "/";
+		if (!range.equals(expected + size) && !range.equals(expected + "*")) {
+			response.body().close();
+			throw new IOException("Unexpected content range " + range + ", expected " + expected + size);
+		}
+
+		try (InputStream is = body(response)) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long pos = start;
+			int len;
+			while ((len = is.read(buffer)) > 0) {
+				ByteBuffer buf = ByteBuffer.wrap(buffer, 0, len);
+				while (buf.hasRemaining()) {
+					pos += channel.write(buf, pos);
+				}
+			}
+			if (pos != end + 1) {
+				throw new IOException("Incomplete range " + start + "-" + end + ", stopped at " + pos);
+			}
+		}
+	}
+
+	/**
+	 * Download the file in chunks, using multiple connections in parallel.
+	 * HTTP/1.1 is used, since HTTP/2 would multiplex all chunks over a single connection.
+	 * The file is preallocated and each chunk is written at its own offset.
+	 * The file is deleted when a chunk could not be downloaded, since it would otherwise contain zero-filled holes.
+	 * 
+	 * @param uri URI
+	 * @param file destination file
+	 * @param size size of the file
+	 * @param validator ETag or Last-Modified of the file, or null
+	 * @throws IOException 
+	 * @throws InterruptedException 
+	 */
+	private void getRanges(URI uri, Path file, long size, String validator) 
+											throws IOException, InterruptedException {
+		long chunk = (chunkSize != null) ? chunkSize : (size + connections - 1) / connections;
+		logger.log(Level.INFO, "Using {0} connections, chunks of {1} bytes", new Object[] { connections, chunk });
+
+		ExecutorService executor = Executors.newFixedThreadPool(connections);
+		executors.add(executor);
+		boolean complete = false;
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(size);
+			FileChannel channel = raf.getChannel();
+
+			List<Future<Void>> futures = new ArrayList<>();
+			for (long start = 0; start < size; start += chunk) {
+				long from = start;
+				long to = Math.min(start + chunk, size) - 1;
+				futures.add(executor.submit(() -> { 
+					getRange(uri, channel, from, to, size, validator);
+					return null;
+				}));
+			}
+			for (Future<Void> f: futures) {
+				f.get();
+			}
+			complete = true;
+		} catch (ExecutionException ee) {
+			throw new IOException(ee.getCause());
+		} finally {
+			executor.shutdownNow();
+			executors.remove(executor);
+			if (!complete) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	/**
+	 * Get the state of a previous (failed) execution of this step
+	 * 
+	 * @return state, possibly empty
+	 */
+	private Properties getState() {
+		Object data = stepContext.getPersistentUserData();
+		return (data instanceof Properties) ? (Properties) data : new Properties();
+	}
+
+	/**
+	 * Download to a part file, continuing from where a previous execution stopped.
+	 * The offset and validator are stored in the step's persistent user data.
+	 * 
+	 * @param uri URI
+	 * @param part part file
+	 * @param meta metadata or null
+	 * @param digest message digest or null
+	 * @return response headers or null if not modified
+	 * @throws IOException 
+	 * @throws InterruptedException 
+	 */
+	private HttpHeaders getResumable(URI uri, Path part, Properties meta, MessageDigest digest) 
+											throws IOException, InterruptedException {
+		Properties state = getState();
+		stepContext.setPersistentUserData(state);
+
+		String validator = state.getProperty("validator");
+		long offset = Long.parseLong(state.getProperty("offset", "0"));
+		if (validator == null || !Files.exists(part) || Files.size(part) < offset) {
+			offset = 0;
+		}
+
+		HttpRequest.Builder builder = newRequest(uri);
+		if (offset > 0) {
+			logger.log(Level.INFO, "Resuming at byte {0}", String.valueOf(offset));
+			builder.header("Range", "bytes=" + offset + "-");
+			builder.header("If-Range", validator);
+		} else {
+			addConditions(builder, meta);
+		}
+
+		HttpResponse<InputStream> response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+		if (offset == 0 && response.statusCode() == HTTP_NOT_MODIFIED) {
+			response.body().close();
+			return null;
+		}
+		if (offset > 0 && response.statusCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+			logger.info("Server could not resume, starting from scratch");
+			response.body().close();
+			state.remove("validator");
+			return getResumable(uri, part, meta, digest);
+		}
+		checkStatus(response, HTTP_OK, HTTP_PARTIAL);
+
+		if (response.statusCode() != HTTP_PARTIAL) {
+			if (offset > 0) {
+				logger.info("Server did not return the remaining part, starting from scratch");
+			}
+			offset = 0;
+		} else {
+			String range = response.headers().firstValue("Content-Range").orElse("");
+			if (!range.startsWith("bytes " + offset + "-")) {
+				response.body().close();
+				throw new IOException("Unexpected content range " + range);
+			}
+		}
+
+		try (InputStream is = body(response);
+			FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			channel.truncate(offset);
+			channel.position(offset);
+			if (digest != null && offset > 0) {
+				updateDigest(digest, part, offset);
+			}
+
+			validator = getValidator(response.headers());
+			if (validator == null) {
+				state.remove("validator");
+			} else {
+				state.setProperty("validator", validator);
+			}
+
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int len;
+			try {
+				while ((len = is.read(buffer)) > 0) {
+					if (digest != null) {
+						digest.update(buffer, 0, len);
+					}
+					ByteBuffer buf = ByteBuffer.wrap(buffer, 0, len);
+					while (buf.hasRemaining()) {
+						channel.write(buf);
+					}
+					state.setProperty("offset", String.valueOf(channel.position()));
+				}
+			} finally {
+				stepContext.setPersistentUserData(state);
+			}
+		}
+		state.remove("offset");
+		state.remove("validator");
+		stepContext.setPersistentUserData(state);
+		return response.headers();
+	}
+
+	/**
+	 * Create a message digest when a checksum is to be calculated
+	 * 
+	 * @return digest or null
+	 * @throws IOException 
+	 */
+	private MessageDigest newDigest() throws IOException {
+		if (checksumAlgorithm == null && expectedChecksum == null && checksumUrl == null) {
+			return null;
+		}
+		String algo = (checksumAlgorithm != null) ? checksumAlgorithm : "SHA-256";
+		try {
+			return MessageDigest.getInstance(algo);
+		} catch (NoSuchAlgorithmException nsa) {
+			throw new IOException("Unsupported checksum algorithm " + algo, nsa);
+		}
+	}
+
+	/**
+	 * Update the digest with the first bytes of a file
+	 * 
+	 * @param digest message digest
+	 * @param file file
+	 * @param len number of bytes
+	 * @throws IOException 
+	 */
+	private static void updateDigest(MessageDigest digest, Path file, long len) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long todo = len;
+		try (InputStream is = Files.newInputStream(file)) {
+			int n;
+			while (todo > 0 && (n = is.read(buffer, 0, (int) Math.min(buffer.length, todo))) > 0) {
+				digest.update(buffer, 0, n);
+				todo -= n;
+			}
+		}
+	}
+
+	/**
+	 * Convert bytes to lowercase hex string
+	 * 
+	 * @param bytes
+	 * @return hex string
+	 */
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b: bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the checksums listed in the checksum file, in the format used by sha256sum (and similar tools)
+	 * 
+	 * @return map of file names and checksums
+	 * @throws IOException 
+	 * @throws InterruptedException 
+	 * @throws URISyntaxException 
+	 */
+	private Map<String, String> getChecksums() throws IOException, InterruptedException, URISyntaxException {
+		Map<String, String> map = new HashMap<>();
+		if (checksumUrl == null) {
+			return map;
+		}
+		HttpResponse<String> response = client.send(newRequest(checksumUrl.toURI()).build(), 
+														HttpResponse.BodyHandlers.ofString());
+		if (response.statusCode() != HTTP_OK) {
+			throw new IOException("Server returned status " + response.statusCode() + " for " + checksumUrl);
+		}
+		for (String line: response.body().split("\\R")) {
+			String[] parts = line.trim().split("\\s+\\*?", 2);
+			if (!parts[0].isEmpty()) {
+				map.put((parts.length > 1) ? parts[1] : "", parts[0].toLowerCase(Locale.ROOT));
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Verify the calculated checksum against the expected one, and write it to a file next to the download.
+	 * The downloaded file is deleted when the checksum does not match.
+	 * 
+	 * @param file destination file
+	 * @param written file the data was written to, which may be a temporary file
+	 * @param digest message digest
+	 * @throws IOException 
+	 */
+	private void verifyChecksum(Path file, Path written, MessageDigest digest) throws IOException {
+		String name = file.getFileName().toString();
+		String hex = toHex(digest.digest());
+
+		String expected = expectedChecksum;
+		if (expected == null) {
+			expected = checksums.containsKey(name) ? checksums.get(name) : checksums.get("");
+		}
+		if (expected != null && !expected.trim().equalsIgnoreCase(hex)) {
+			Files.deleteIfExists(written);
+			if (written.equals(file)) {
+				Files.deleteIfExists(getMetaFile(file));
+			}
+			throw new IOException("Checksum mismatch for " + file + ", expected " + expected + " got " + hex);
+		}
+		String ext = digest.getAlgorithm().replace("-", "").toLowerCase(Locale.ROOT);
+		Files.writeString(Paths.get(file.toString() + "." + ext), hex + "  " + name + "\n", StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Download a file, using the mode set in the properties
+	 * 
+	 * @param uri URI
+	 * @param file destination file
+	 * @param resumable resume from a previous execution
+	 * @return false if not modified
+	 * @throws IOException 
+	 * @throws InterruptedException 
+	 */
+	private boolean download(URI uri, Path file, boolean resumable) throws IOException, InterruptedException {
+		logger.log(Level.INFO, "Getting from {0}", uri);
+
+		Properties meta = conditional ? readMeta(file) : null;
+		MessageDigest digest = newDigest();
+		boolean inline = true;
+		HttpHeaders headers = null;
+
+		Path dest = file;
+		if (resumable) {
+			dest = getPartFile(file);
+		} else if (atomic) {
+			dest = AtomicFiles.createTemp(file);
+		}
+
+		try {
+			if (resumable) {
+				if (connections != null && connections > 1) {
+					logger.info("Resume mode uses a single connection");
+				}
+				if (compressed) {
+					logger.info("Resume mode does not use compression");
+				}
+				headers = getResumable(uri, dest, meta, digest);
+			} else if (compressed) {
+				headers = getSingle(uri, dest, meta, digest);
+			} else if (connections != null && connections > 1) {
+				HttpHeaders[] probed = new HttpHeaders[1];
+				long size = probeRanges(uri, meta, probed);
+				if (size > 0) {
+					getRanges(uri, dest, size, getValidator(probed[0]));
+					headers = probed[0];
+					inline = false;
+				} else if (size != NOT_MODIFIED) {
+					logger.info("Server does not support ranges, using single connection");
+					headers = getSingle(uri, dest, meta, digest);
+				}
+			} else {
+				headers = getSingle(uri, dest, meta, digest);
+			}
+
+			if (headers == null) {
+				logger.log(Level.INFO, "{0} not modified", file);
+				return false;
+			}
+			if (digest != null) {
+				if (!inline) {
+					// chunks arrive out of order, so the digest can only be calculated afterwards
+					updateDigest(digest, dest, Files.size(dest));
+				}
+				verifyChecksum(file, dest, digest);
+			}
+			if (!dest.equals(file)) {
+				AtomicFiles.commit(dest, file, fsync);
+			} else if (fsync) {
+				AtomicFiles.sync(file);
+			}
+		} finally {
+			if (!resumable && !dest.equals(file)) {
+				Files.deleteIfExists(dest);
+			}
+		}
+
+		if (conditional) {
+			writeMeta(uri, file, headers);
+		} else {
+			Files.deleteIfExists(getMetaFile(file));
+		}
+		return true;
+	}
+
+	/**
+	 * Get the file name of the last segment of the path of a URI
+	 * 
+	 * @param uri URI
+	 * @return file name or null if the path is empty
+	 */
+	private static String getFileName(URI uri) {
+		String path = uri.getPath();
+		if (path == null || path.isEmpty()) {
+			return null;
+		}
+		Path name = Paths.get(path).getFileName();
+		return (name != null) ? name.toString() : null;
+	}
+
+	/**
+	 * Get the list of URLs to download and their destination file.
+	 * Each line in the manifest contains a URL and an optional file name, separated by whitespace.
+	 * 
+	 * @return map of destination files and URLs, or null if the list is not valid
+	 * @throws IOException
+	 * @throws URISyntaxException 
+	 */
+	private Map<Path, URI> getURIs() throws IOException, URISyntaxException {
+		List<String> lines = new ArrayList<>();
+		if (fromURLs != null) {
+			for (String s: fromURLs.split("[,\\s]+")) {
+				lines.add(s);
+			}
+		}
+		if (manifest != null) {
+			lines.addAll(Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8));
+		}
+
+		Map<Path, URI> uris = new LinkedHashMap<>();
+		for (String line: lines) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] parts = line.split("\\s+", 2);
+			URI uri = new URI(parts[0]);
+			String name = (parts.length > 1) ? parts[1] : getFileName(uri);
+			if (name == null) {
+				logger.log(Level.SEVERE, "No file name in {0}, add one after the URL in the manifest", uri);
+				return null;
+			}
+			Path file = Paths.get(toDir.toString(), name);
+			URI other = uris.putIfAbsent(file, uri);
+			if (other != null) {
+				logger.log(Level.SEVERE, "{0} and {1} would both be downloaded to {2}", 
+										new Object[] { other, uri, file });
+				return null;
+			}
+		}
+		return uris;
+	}
+
+	/**
+	 * Download a list of files in parallel
+	 * 
+	 * @return batch status
+	 * @throws Exception 
+	 */
+	private String downloadAll() throws Exception {
+		if (resume) {
+			logger.warning("Resume mode is not supported for multiple URLs");
+		}
+		Map<Path, URI> uris = getURIs();
+		if (uris == null) {
+			return BatchStatus.FAILED.toString();
+		}
+		int threads = (parallel != null) ? parallel : 4;
+		logger.log(Level.INFO, "Getting {0} files, {1} in parallel", new Object[] { uris.size(), threads });
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		executors.add(executor);
+
+		Map<Path, Future<Boolean>> futures = new LinkedHashMap<>();
+		try {
+			for (Map.Entry<Path, URI> e: uris.entrySet()) {
+				futures.put(e.getKey(), executor.submit(() -> download(e.getValue(), e.getKey(), false)));
+			}
+			int changed = 0;
+			int failed = 0;
+			for (Map.Entry<Path, Future<Boolean>> f: futures.entrySet()) {
+				try {
+					if (f.getValue().get()) {
+						changed++;
+					}
+				} catch (ExecutionException ee) {
+					logger.log(Level.SEVERE, "Failed to get {0}: {1}", 
+										new Object[] { uris.get(f.getKey()), ee.getCause().getMessage() });
+					failed++;
+				}
+			}
+			logger.log(Level.INFO, "{0} files downloaded, {1} not modified, {2} failed", 
+										new Object[] { changed, uris.size() - changed - failed, failed });
+			if (failed > 0) {
+				return BatchStatus.FAILED.toString();
+			}
+			return (changed == 0 && !uris.isEmpty()) ? UNCHANGED : BatchStatus.COMPLETED.toString();
+		} finally {
+			executor.shutdownNow();
+			executors.remove(executor);
+		}
+	}
+
+	@Override
+	public String process() throws Exception {
+		if (! checkParameters()) {
+			return BatchStatus.FAILED.toString();	
+		}
+		Duration timeout = (connectTimeout != null) ? Duration.ofSeconds(connectTimeout) : null;
+		client = SharedHttpClient.get(timeout, http2 == null || http2);
+		rangeClient = SharedHttpClient.get(timeout, false);
+		metrics = new TransferMetrics();
+		limiters = RateLimiter.limiters(maxBytesPerSecond);
+		try {
+			checksums = getChecksums();
+
+			if (fromURL == null) {
+				return downloadAll();
+			}
+			if (!download(fromURL.toURI(), toFile.toPath(), resume)) {
+				return UNCHANGED;
+			}
+			return BatchStatus.COMPLETED.toString();
+		} finally {
+			metrics.finish();
+			metrics.publish(stepContext);
+			TransferStats.get(HttpGetBatchlet.class.getSimpleName()).add(metrics);
+			logger.log(Level.INFO, "Transferred {0}", metrics.getSummary());
+		}
+	}
+
+	@Override
+	public void stop() {
+		for (ExecutorService executor: executors) {
+			executor.shutdownNow();
+		}
 	}
-	
 }
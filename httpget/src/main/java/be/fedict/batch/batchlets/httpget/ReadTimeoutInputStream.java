@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.httpget;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Input stream closing the underlying stream when a read blocks for too long.
+ * 
+ * The request timeout of the HTTP client only covers the response headers, 
+ * a response body that stalls would otherwise block the download forever.
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+class ReadTimeoutInputStream extends FilterInputStream {
+	private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "http-read-timeout");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final long timeout;
+	private final ScheduledFuture<?> check;
+	private volatile long readSince;
+	private volatile boolean expired;
+
+	/**
+	 * Close the stream when the current read started more than timeout ago
+	 */
+	private void check() {
+		long since = readSince;
+		if (since != 0 && System.nanoTime() - since > timeout) {
+			expired = true;
+			check.cancel(false);
+			try {
+				in.close();
+			} catch (IOException ioe) {
+				// ignore, the reading thread gets a timeout
+			}
+		}
+	}
+
+	/**
+	 * Mark the start of a read
+	 * 
+	 * @throws SocketTimeoutException if the stream already timed out
+	 */
+	private void begin() throws SocketTimeoutException {
+		if (expired) {
+			throw timeoutException();
+		}
+		readSince = System.nanoTime();
+	}
+
+	private SocketTimeoutException timeoutException() {
+		return new SocketTimeoutException("No data received for " 
+									+ TimeUnit.NANOSECONDS.toSeconds(timeout) + " seconds");
+	}
+
+	@Override
+	public int read() throws IOException {
+		begin();
+		try {
+			return super.read();
+		} catch (IOException ioe) {
+			throw expired ? timeoutException() : ioe;
+		} finally {
+			readSince = 0;
+		}
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		begin();
+		try {
+			return super.read(b, off, len);
+		} catch (IOException ioe) {
+			throw expired ? timeoutException() : ioe;
+		} finally {
+			readSince = 0;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		check.cancel(false);
+		super.close();
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param in input stream
+	 * @param timeout maximum time a single read may block
+	 */
+	ReadTimeoutInputStream(InputStream in, Duration timeout) {
+		super(in);
+		this.timeout = timeout.toNanos();
+		long period = Math.max(100, timeout.toMillis() / 4);
+		this.check = WATCHDOG.scheduleAtFixedRate(this::check, period, period, TimeUnit.MILLISECONDS);
+	}
+}
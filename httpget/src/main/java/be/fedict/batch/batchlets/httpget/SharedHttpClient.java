@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.httpget;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM-wide HTTP clients, shared by all batchlets so connections are kept alive and reused.
+ * One client is created per combination of connect timeout and HTTP version.
+ * 
+ * The keep-alive timeout can be set using the jdk.httpclient.keepalive.timeout system property.
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+final class SharedHttpClient {
+	private static final Map<Key, HttpClient> CLIENTS = new ConcurrentHashMap<>();
+
+	private static final class Key {
+		private final Duration connectTimeout;
+		private final boolean http2;
+
+		private Key(Duration connectTimeout, boolean http2) {
+			this.connectTimeout = connectTimeout;
+			this.http2 = http2;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return http2 == other.http2 && Objects.equals(connectTimeout, other.connectTimeout);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(connectTimeout, http2);
+		}
+	}
+
+	/**
+	 * Get a shared client
+	 * 
+	 * @param connectTimeout connect timeout or null for no timeout
+	 * @param http2 use HTTP/2 if the server supports it
+	 * @return client
+	 */
+	static HttpClient get(Duration connectTimeout, boolean http2) {
+		return CLIENTS.computeIfAbsent(new Key(connectTimeout, http2), k -> {
+			HttpClient.Builder builder = HttpClient.newBuilder()
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1);
+			if (connectTimeout != null) {
+				builder.connectTimeout(connectTimeout);
+			}
+			return builder.build();
+		});
+	}
+
+	private SharedHttpClient() {
+	}
+}
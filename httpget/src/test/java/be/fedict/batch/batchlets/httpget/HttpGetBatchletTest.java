@@ -0,0 +1,721 @@
+/*
+ * Copyright (c) 2020, Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.httpget;
+
+import be.fedict.batch.batchlets.test.BatchletTest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.batch.runtime.BatchStatus;
+import javax.batch.runtime.StepExecution;
+import org.jberet.runtime.JobExecutionImpl;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Bart.Hanssens
+ */
+
+public class HttpGetBatchletTest extends BatchletTest {
+	private static final String URL = "http://localhost:8123";
+	private static final String ETAG = "\"v1\"";
+	private static final byte[] DATA = new byte[1024 * 1024];
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private HttpServer server;
+	private ExecutorService pool;
+	private final AtomicInteger requests = new AtomicInteger();
+	private volatile String range;
+	private volatile String ifRange;
+
+	/**
+	 * Serve a file, with or without support for byte ranges
+	 * 
+	 * @param ex exchange
+	 * @param ranges support ranges
+	 * @throws IOException 
+	 */
+	private void serve(HttpExchange ex, boolean ranges) throws IOException {
+		serve(ex, ranges, ETAG);
+	}
+
+	/**
+	 * Serve a version of a file, with or without support for byte ranges
+	 * 
+	 * @param ex exchange
+	 * @param ranges support ranges
+	 * @param etag ETag of the current version
+	 * @throws IOException 
+	 */
+	private void serve(HttpExchange ex, boolean ranges, String etag) throws IOException {
+		if (ranges) {
+			ex.getResponseHeaders().add("Accept-Ranges", "bytes");
+		}
+		ex.getResponseHeaders().add("ETag", etag);
+		if (etag.equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+			ex.sendResponseHeaders(304, -1);
+			ex.close();
+			return;
+		}
+		if (ex.getRequestMethod().equals("HEAD")) {
+			ex.getResponseHeaders().add("Content-Length", String.valueOf(DATA.length));
+			ex.sendResponseHeaders(200, -1);
+			ex.close();
+			return;
+		}
+		int start = 0;
+		int end = DATA.length - 1;
+		String range = ex.getRequestHeaders().getFirst("Range");
+		String ifRange = ex.getRequestHeaders().getFirst("If-Range");
+		if (ranges && range != null && (ifRange == null || ifRange.equals(etag))) {
+			String[] parts = range.substring("bytes=".length()).split("-");
+			start = Integer.parseInt(parts[0]);
+			if (parts.length > 1 && !parts[1].isEmpty()) {
+				end = Math.min(Integer.parseInt(parts[1]), end);
+			}
+			ex.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + DATA.length);
+			ex.sendResponseHeaders(206, end - start + 1);
+		} else {
+			ex.sendResponseHeaders(200, DATA.length);
+		}
+		try (OutputStream os = ex.getResponseBody()) {
+			os.write(DATA, start, end - start + 1);
+		}
+	}
+
+	/**
+	 * Serve the first half of a file, and close the connection
+	 * 
+	 * @param ex exchange
+	 * @throws IOException 
+	 */
+	private void serveInterrupted(HttpExchange ex) throws IOException {
+		ex.getResponseHeaders().add("Accept-Ranges", "bytes");
+		ex.getResponseHeaders().add("ETag", ETAG);
+		ex.sendResponseHeaders(200, DATA.length);
+		OutputStream os = ex.getResponseBody();
+		os.write(DATA, 0, DATA.length / 2);
+		os.flush();
+		ex.close();
+	}
+
+	/**
+	 * Interrupt the first request, and serve the file when the download is resumed
+	 * 
+	 * @param ex exchange
+	 * @param etag ETag of the file when the download is resumed
+	 * @throws IOException 
+	 */
+	private void serveResumed(HttpExchange ex, String etag) throws IOException {
+		if (requests.getAndIncrement() == 0) {
+			serveInterrupted(ex);
+			return;
+		}
+		range = ex.getRequestHeaders().getFirst("Range");
+		ifRange = ex.getRequestHeaders().getFirst("If-Range");
+		serve(ex, true, etag);
+	}
+
+	/**
+	 * Serve a file deflate compressed, if the client accepts it
+	 * 
+	 * @param ex exchange
+	 * @param nowrap raw deflate data instead of zlib format
+	 * @throws IOException 
+	 */
+	private void serveDeflated(HttpExchange ex, boolean nowrap) throws IOException {
+		String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+		if (accept == null || !accept.contains("deflate")) {
+			serve(ex, false);
+			return;
+		}
+		ex.getResponseHeaders().add("Content-Encoding", "deflate");
+		ex.sendResponseHeaders(200, 0);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+		try (OutputStream os = new DeflaterOutputStream(ex.getResponseBody(), deflater)) {
+			os.write(DATA);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static String sha256(byte[] data) throws IOException {
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (byte b: MessageDigest.getInstance("SHA-256").digest(data)) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		new Random(42).nextBytes(DATA);
+
+		pool = Executors.newCachedThreadPool();
+		server = HttpServer.create(new InetSocketAddress("localhost", 8123), 0);
+		server.createContext("/ranges.bin", ex -> serve(ex, true));
+		server.createContext("/noranges.bin", ex -> serve(ex, false));
+		server.createContext("/stalled.bin", ex -> {
+			ex.sendResponseHeaders(200, DATA.length);
+			OutputStream os = ex.getResponseBody();
+			os.write(DATA, 0, 1000);
+			os.flush();
+			try {
+				Thread.sleep(30_000);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			ex.close();
+		});
+		server.createContext("/interrupted.bin", ex -> serveResumed(ex, ETAG));
+		server.createContext("/replaced.bin", ex -> serveResumed(ex, "\"v2\""));
+		// modified between the request for the size and the requests for the ranges
+		server.createContext("/modified.bin", 
+				ex -> serve(ex, true, ex.getRequestMethod().equals("HEAD") ? ETAG : "\"v2\""));
+		server.createContext("/gzip.bin", ex -> {
+			String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+			if (accept == null || !accept.contains("gzip")) {
+				serve(ex, false);
+				return;
+			}
+			ex.getResponseHeaders().add("Content-Encoding", "gzip");
+			ex.sendResponseHeaders(200, 0);
+			try (OutputStream os = new GZIPOutputStream(ex.getResponseBody())) {
+				os.write(DATA);
+			}
+		});
+		// claims to be gzip compressed, but is not
+		server.createContext("/corrupt.bin", ex -> {
+			ex.getResponseHeaders().add("Content-Encoding", "gzip");
+			ex.sendResponseHeaders(200, DATA.length);
+			try (OutputStream os = ex.getResponseBody()) {
+				os.write(DATA);
+			}
+		});
+		server.createContext("/deflate.bin", ex -> serveDeflated(ex, false));
+		server.createContext("/rawdeflate.bin", ex -> serveDeflated(ex, true));
+		server.createContext("/SHA256SUMS", ex -> {
+			byte[] sums = (sha256(DATA) + "  ranges.bin\n").getBytes(StandardCharsets.UTF_8);
+			ex.sendResponseHeaders(200, sums.length);
+			try (OutputStream os = ex.getResponseBody()) {
+				os.write(sums);
+			}
+		});
+		server.setExecutor(pool);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void testGet() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/noranges.bin",
+							"toFile", file.toString()));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(DATA, Files.readAllBytes(file));
+	}
+
+	@Test
+	public void testGetRanges() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/ranges.bin",
+							"toFile", file.toString(),
+							"connections", "4",
+							"chunkSize", "100000"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(DATA, Files.readAllBytes(file));
+	}
+
+	@Test
+	public void testGetRangesModified() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/modified.bin",
+							"toFile", file.toString(),
+							"connections", "4",
+							"chunkSize", "100000"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+		assertFalse("Incomplete file still exists", Files.exists(file));
+	}
+
+	@Test
+	public void testGetRangesNotSupported() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/noranges.bin",
+							"toFile", file.toString(),
+							"connections", "4"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(DATA, Files.readAllBytes(file));
+	}
+
+	@Test
+	public void testGetMetrics() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/ranges.bin",
+							"toFile", file.toString(),
+							"connections", "4",
+							"chunkSize", "100000"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		StepExecution step = execution.getStepExecutions().get(0);
+		Properties metrics = (Properties) step.getPersistentUserData();
+		assertEquals(String.valueOf(DATA.length), metrics.getProperty("metrics.bytes"));
+		assertTrue(metrics.containsKey("metrics.mbPerSecond"));
+	}
+
+	@Test
+	public void testGetThrottled() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/ranges.bin",
+							"toFile", file.toString(),
+							"maxBytesPerSecond", String.valueOf(DATA.length / 2)));
+
+		long start = System.currentTimeMillis();
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(DATA, Files.readAllBytes(file));
+		// first half is allowed as a burst, second half takes one second
+		assertTrue("Download too fast", System.currentTimeMillis() - start >= 900);
+	}
+
+	@Test
+	public void testGetResume() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/ranges.bin",
+							"toFile", file.toString(),
+							"resume", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(DATA, Files.readAllBytes(file));
+		assertFalse("Part file still exists", Files.exists(Paths.get(file.toString() + ".part")));
+	}
+
+	@Test
+	public void testGetResumeInterrupted() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+		Path part = Paths.get(file.toString() + ".part");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/interrupted.bin",
+							"toFile", file.toString(),
+							"resume", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props, true);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+		Properties state = (Properties) execution.getStepExecutions().get(0).getPersistentUserData();
+		long offset = Long.parseLong(state.getProperty("offset"));
+		assertTrue("No data received", offset > 0 && offset < DATA.length);
+		assertEquals(ETAG, state.getProperty("validator"));
+		assertEquals(offset, Files.size(part));
+
+		execution = restartBatchletJob(execution);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals("bytes=" + offset + "-", range);
+		assertEquals(ETAG, ifRange);
+		assertArrayEquals(DATA, Files.readAllBytes(file));
+		assertFalse("Part file still exists", Files.exists(part));
+	}
+
+	@Test
+	public void testGetResumeModified() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/replaced.bin",
+							"toFile", file.toString(),
+							"resume", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props, true);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+
+		execution = restartBatchletJob(execution);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		// server ignores the range of the old version and returns the entire file
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals(ETAG, ifRange);
+		assertArrayEquals(DATA, Files.readAllBytes(file));
+	}
+
+	@Test
+	public void testGetConditional() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/ranges.bin",
+							"toFile", file.toString(),
+							"conditional", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals(BatchStatus.COMPLETED.toString(), execution.getStepExecutions().get(0).getExitStatus());
+		assertTrue("Metadata does not exist", Files.exists(Paths.get(file.toString() + ".meta")));
+
+		execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals(HttpGetBatchlet.UNCHANGED, execution.getStepExecutions().get(0).getExitStatus());
+		assertArrayEquals(DATA, Files.readAllBytes(file));
+	}
+
+	@Test
+	public void testGetMultiple() throws Exception {
+		String root = tmp.getRoot().toString();
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURLs", URL + "/ranges.bin," + URL + "/noranges.bin",
+							"toDir", root,
+							"parallel", "2",
+							"connectTimeout", "5"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(DATA, Files.readAllBytes(Paths.get(root, "ranges.bin")));
+		assertArrayEquals(DATA, Files.readAllBytes(Paths.get(root, "noranges.bin")));
+	}
+
+	@Test
+	public void testGetSingleAndMultiple() throws Exception {
+		String root = tmp.getRoot().toString();
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/ranges.bin",
+							"toFile", Paths.get(root, "file.bin").toString(),
+							"fromURLs", URL + "/noranges.bin",
+							"toDir", root));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+		assertEquals(0, tmp.getRoot().list().length);
+	}
+
+	@Test
+	public void testGetMultipleSameName() throws Exception {
+		String root = tmp.getRoot().toString();
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURLs", URL + "/ranges.bin," + URL + "/2021/ranges.bin",
+							"toDir", root));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+		assertFalse(Files.exists(Paths.get(root, "ranges.bin")));
+	}
+
+	@Test
+	public void testGetMultipleNoName() throws Exception {
+		String root = tmp.getRoot().toString();
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURLs", URL + "/",
+							"toDir", root));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+	}
+
+	@Test
+	public void testGetAtomic() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/noranges.bin",
+							"toFile", file.toString(),
+							"atomic", "true",
+							"fsync", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(DATA, Files.readAllBytes(file));
+		assertEquals(1, tmp.getRoot().list().length);
+	}
+
+	@Test
+	public void testGetAtomicFailed() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/stalled.bin",
+							"toFile", file.toString(),
+							"atomic", "true",
+							"readTimeout", "1"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		// the first bytes have been received, but are not visible yet
+		Thread.sleep(500);
+		assertFalse("Partial file visible", Files.exists(file));
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+		assertEquals("Temporary file left behind", 0, tmp.getRoot().list().length);
+	}
+
+	@Test
+	public void testGetReadTimeout() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/stalled.bin",
+							"toFile", file.toString(),
+							"readTimeout", "1"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+	}
+
+	@Test
+	public void testGetChecksum() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "ranges.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/ranges.bin",
+							"toFile", file.toString(),
+							"checksumUrl", URL + "/SHA256SUMS"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertTrue("Checksum file does not exist", Files.exists(Paths.get(file.toString() + ".sha256")));
+	}
+
+	@Test
+	public void testGetChecksumMismatch() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "ranges.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/ranges.bin",
+							"toFile", file.toString(),
+							"checksumAlgorithm", "MD5",
+							"expectedChecksum", "d41d8cd98f00b204e9800998ecf8427e"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+		assertFalse(file + " still exists", Files.exists(file));
+	}
+
+	@Test
+	public void testGetCompressed() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/gzip.bin",
+							"toFile", file.toString(),
+							"compressed", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(DATA, Files.readAllBytes(file));
+	}
+
+	@Test
+	public void testGetCompressedCorrupt() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/corrupt.bin",
+							"toFile", file.toString(),
+							"compressed", "true",
+							"readTimeout", "5"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+	}
+
+	@Test
+	public void testGetDeflate() throws Exception {
+		for (String name: new String[] { "deflate.bin", "rawdeflate.bin" }) {
+			Path file = Paths.get(tmp.getRoot().toString(), name);
+
+			Properties props = new Properties();
+			props.putAll(Map.of("fromURL", URL + "/" + name,
+								"toFile", file.toString(),
+								"compressed", "true"));
+
+			JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+			execution.awaitTermination(10, TimeUnit.SECONDS);
+
+			assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+			assertArrayEquals(DATA, Files.readAllBytes(file));
+		}
+	}
+
+	@Test
+	public void testGetKeepCompressedNotCompressed() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin.gz");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/noranges.bin",
+							"toFile", file.toString(),
+							"compressed", "true",
+							"keepCompressed", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(DATA, Files.readAllBytes(file));
+		Properties state = (Properties) execution.getStepExecutions().get(0).getPersistentUserData();
+		assertEquals("true", state.getProperty("uncompressed." + URL + "/noranges.bin"));
+	}
+
+	@Test
+	public void testGetKeepCompressedWithoutCompressed() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin.gz");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/gzip.bin",
+							"toFile", file.toString(),
+							"keepCompressed", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+	}
+
+	@Test
+	public void testGetKeepCompressed() throws Exception {
+		Path file = Paths.get(tmp.getRoot().toString(), "file.bin.gz");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromURL", URL + "/gzip.bin",
+							"toFile", file.toString(),
+							"compressed", "true",
+							"keepCompressed", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("httpGetBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		try (InputStream is = new GZIPInputStream(Files.newInputStream(file))) {
+			assertArrayEquals(DATA, is.readAllBytes());
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.sftp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Receiving end of a pipe fed by another thread.
+ * Reaching the end of the pipe before the source was read completely is reported as an error,
+ * so an upload fails instead of storing a truncated file.
+ * The time of the last read is kept, so a reader that stopped reading can be detected.
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+class PipedSource extends FilterInputStream {
+	private final AtomicBoolean complete;
+	private final String name;
+	private volatile long lastRead = System.nanoTime();
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		lastRead = System.nanoTime();
+		if (b < 0 && !complete.get()) {
+			throw new IOException("Could not read " + name);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		lastRead = System.nanoTime();
+		if (n < 0 && !complete.get()) {
+			throw new IOException("Could not read " + name);
+		}
+		return n;
+	}
+
+	/**
+	 * Check if the reader stopped reading, while there is data waiting in the pipe
+	 * or the whole source was already fed into the pipe
+	 * 
+	 * @param timeout timeout in nanoseconds
+	 * @return true if the reader did not finish and nothing was read during the timeout
+	 */
+	boolean isStalled(long timeout) {
+		try {
+			return (in.available() > 0 || complete.get()) && System.nanoTime() - lastRead > timeout;
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param in receiving end of the pipe
+	 * @param complete set by the feeding thread when the whole source was read
+	 * @param name name of the source
+	 */
+	PipedSource(InputStream in, AtomicBoolean complete, String name) {
+		super(in);
+		this.complete = complete;
+		this.name = name;
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.sftp;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JVM-wide pool of authenticated SFTP sessions, keyed by host, port, user and session settings.
+ * 
+ * Sessions are returned to the pool after use, and disconnected when they have been idle for too long
+ * (system property be.fedict.batch.sftp.idleTimeout, in seconds).
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+final class SessionPool {
+	private static final Logger logger = Logger.getLogger(SessionPool.class.getName());
+
+	private static final int DEFAULT_PORT = 22;
+	private static final int MAX_IDLE = 8;
+	private static final int KEEPALIVE_MS = 15_000;
+	private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(
+								Long.getLong("be.fedict.batch.sftp.idleTimeout", 60));
+
+	private static final JSch JSCH = new JSch();
+	private static final Map<Key, Deque<Idle>> POOL = new ConcurrentHashMap<>();
+	private static final Map<Session, Key> KEYS = new ConcurrentHashMap<>();
+	private static final AtomicLong OPENED = new AtomicLong();
+
+	private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "sftp-session-evictor");
+		t.setDaemon(true);
+		return t;
+	});
+
+	static {
+		long period = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(IDLE_TIMEOUT) / 2);
+		EVICTOR.scheduleWithFixedDelay(SessionPool::evict, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Pool key
+	 */
+	private static class Key {
+		private final String host;
+		private final int port;
+		private final String user;
+		private final String pass;
+		private final String settings;
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return port == other.port && host.equals(other.host) && user.equals(other.user) 
+					&& pass.equals(other.pass) && settings.equals(other.settings);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(host, port, user, settings);
+		}
+
+		@Override
+		public String toString() {
+			return user + "@" + host + ":" + port;
+		}
+
+		Key(String host, int port, String user, String pass, String settings) {
+			this.host = host;
+			this.port = (port > 0) ? port : DEFAULT_PORT;
+			this.user = user;
+			this.pass = pass;
+			this.settings = settings;
+		}
+	}
+
+	/**
+	 * Idle session
+	 */
+	private static class Idle {
+		private final Session session;
+		private final long since;
+
+		Idle(Session session) {
+			this.session = session;
+			this.since = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Check if an idle session can still be used
+	 * 
+	 * @param session session
+	 * @return true if healthy
+	 */
+	private static boolean isHealthy(Session session) {
+		if (!session.isConnected()) {
+			return false;
+		}
+		try {
+			session.sendKeepAliveMsg();
+			return true;
+		} catch (Exception e) {
+			logger.log(Level.FINE, "Keepalive failed {0}", e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Disconnect sessions that have been idle for too long
+	 */
+	private static void evict() {
+		long now = System.nanoTime();
+		for (Deque<Idle> idles: POOL.values()) {
+			for (Idle idle: idles) {
+				// only disconnect the session if it was not borrowed in the meantime
+				if ((now - idle.since > IDLE_TIMEOUT || !idle.session.isConnected()) 
+						&& idles.removeFirstOccurrence(idle)) {
+					invalidate(idle.session);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get a connected session from the pool, or open a new one
+	 * 
+	 * @param host host name
+	 * @param port port number or 0 for default port
+	 * @param user user name
+	 * @param pass password
+	 * @param settings description of all settings applied by the configuration
+	 * @param configure configuration of a new session (host key check, compression...)
+	 * @param timeout timeout in milliseconds for connecting a new session
+	 * @return session
+	 * @throws JSchException 
+	 */
+	static Session borrow(String host, int port, String user, String pass, String settings, 
+			Consumer<Session> configure, int timeout) throws JSchException {
+		Key key = new Key(host, port, user, pass, settings);
+
+		Deque<Idle> idles = POOL.get(key);
+		if (idles != null) {
+			Idle idle;
+			while ((idle = idles.pollFirst()) != null) {
+				if (isHealthy(idle.session)) {
+					logger.log(Level.FINE, "Reusing session {0}", key);
+					return idle.session;
+				}
+				invalidate(idle.session);
+			}
+		}
+
+		logger.log(Level.FINE, "Opening session {0}", key);
+		Session session = JSCH.getSession(user, host, key.port);
+		session.setPassword(pass);
+		configure.accept(session);
+		// let JSch detect broken connections while the session is idle
+		session.setServerAliveInterval(KEEPALIVE_MS);
+		session.connect(timeout);
+		OPENED.incrementAndGet();
+		KEYS.put(session, key);
+		return session;
+	}
+
+	/**
+	 * Get the number of sessions opened by the pool since the JVM was started
+	 * 
+	 * @return number of sessions
+	 */
+	static long opened() {
+		return OPENED.get();
+	}
+
+	/**
+	 * Return a session to the pool
+	 * 
+	 * @param session session
+	 */
+	static void release(Session session) {
+		Key key = KEYS.get(session);
+		if (key == null || !session.isConnected()) {
+			invalidate(session);
+			return;
+		}
+		Deque<Idle> idles = POOL.computeIfAbsent(key, k -> new ConcurrentLinkedDeque<>());
+		if (idles.size() >= MAX_IDLE) {
+			invalidate(session);
+			return;
+		}
+		idles.offerFirst(new Idle(session));
+	}
+
+	/**
+	 * Disconnect a session and remove it from the pool, e.g. after an error
+	 * 
+	 * @param session session
+	 */
+	static void invalidate(Session session) {
+		KEYS.remove(session);
+		session.disconnect();
+	}
+
+	private SessionPool() {
+	}
+}
@@ -25,26 +25,74 @@
  */
 package be.fedict.batch.batchlets.sftp;
 
+import be.fedict.batch.batchlets.common.AtomicFiles;
+import be.fedict.batch.batchlets.common.RateLimiter;
+import be.fedict.batch.batchlets.common.TransferMetrics;
+import be.fedict.batch.batchlets.common.TransferStats;
+
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
 import com.jcraft.jsch.SftpException;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.batch.api.AbstractBatchlet;
 import javax.batch.api.BatchProperty;
 import javax.batch.runtime.BatchStatus;
+import javax.batch.runtime.context.StepContext;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
 import javax.validation.constraints.PositiveOrZero;
 
 /**
- * Download or upload a file via SFTP (not both)
+ * Download or upload a file via SFTP.
+ * The source file can also be a directory or a glob pattern, to transfer multiple files in parallel.
+ * When both source and destination site are set, the file is relayed from one server to the other.
  * 
  * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
  */
@@ -52,6 +100,11 @@ import javax.validation.constraints.PositiveOrZero;
 public class SftpBatchlet extends AbstractBatchlet {
 	private static final Logger logger = Logger.getLogger(SftpBatchlet.class.getName());
 
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int STOP_GRACE = 10;
+	private static final int RELAY_BUFFER_SIZE = 16 * BUFFER_SIZE;
+	private static final int STALL_TIMEOUT = 60;
+
 	@Inject 
 	@BatchProperty
 	String fromSite;
@@ -100,8 +153,134 @@ public class SftpBatchlet extends AbstractBatchlet {
 	@BatchProperty
 	boolean insecure;
 
+	@Inject 
+	@BatchProperty
+	boolean pool;
+
+	@Inject 
+	@BatchProperty
+	boolean compression;
+
+	@Inject 
+	@BatchProperty
+	String ciphers;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Integer bulkRequests;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Integer socketBufferSize;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Integer channels;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Integer sessions;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Long chunkSize;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Long maxBytesPerSecond;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Integer minSuccess;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Integer stallTimeout;
+
+	@Inject 
+	@BatchProperty
+	@Positive
+	Integer progressInterval;
+
+	@Inject 
+	@BatchProperty
+	boolean resume;
+
+	@Inject 
+	@BatchProperty
+	boolean sync;
+
+	@Inject 
+	@BatchProperty
+	boolean deleteVanished;
+
+	@Inject 
+	@BatchProperty
+	boolean atomic;
+
+	@Inject 
+	@BatchProperty
+	boolean fsync;
+
+	@Inject
+	StepContext stepContext;
+
 	private JSch sftp;
-	private Session session;
+	private final Set<Session> openSessions = ConcurrentHashMap.newKeySet();
+	private TransferMetrics metrics;
+	private volatile TransferProgress progress;
+	private volatile boolean stopRequested;
+	private List<RateLimiter> limiters;
+	private Properties state;
+
+	/**
+	 * Destination server of a fan-out upload
+	 */
+	private static class Destination {
+		private final String site;
+		private final int port;
+		private final String user;
+		private final String pass;
+		private volatile Session session;
+		private volatile boolean stalled;
+
+		@Override
+		public String toString() {
+			String host = site.contains(":") ? "[" + site + "]" : site;
+			return (port > 0) ? host + ":" + port : host;
+		}
+
+		Destination(String site, int port, String user, String pass) {
+			this.site = site;
+			this.port = port;
+			this.user = user;
+			this.pass = pass;
+		}
+	}
+
+	/**
+	 * Transfer of a single file over an SFTP channel
+	 */
+	@FunctionalInterface
+	private interface Transfer {
+		void transfer(ChannelSftp channel, String file) throws JSchException, SftpException, IOException;
+	}
+
+	/**
+	 * Download into a local file
+	 */
+	@FunctionalInterface
+	private interface Writer {
+		void write(Path dest) throws JSchException, SftpException, IOException;
+	}
 
 	private boolean checkParameters() {
 		if (fromFile == null || toFile == null) {
@@ -112,87 +291,1160 @@ public class SftpBatchlet extends AbstractBatchlet {
 			logger.severe("Source and destination site are both empty, nothing to sftp");
 			return false;
 		}
-		if (fromSite != null && toSite != null) {
-			logger.severe("Source and destination site are both set, use a temp file");
+		if (fromSite != null && toSite != null && toSite.contains(",")) {
+			logger.severe("Relaying to multiple destination sites is not supported");
+			return false;
+		}
+		if ((sync || deleteVanished) && (fromSite == null || toSite != null)) {
+			logger.severe("Synchronisation is only supported for downloads");
 			return false;
 		}
 		return true;
 	}
 
 	/**
-	 * Open a session
+	 * Open a session, or take one from the session pool
 	 * 
 	 * @param site
 	 * @param port
 	 * @param user
 	 * @param pass
+	 * @return session
 	 * @throws JSchException 
 	 */
-	private void openSession(String site, int port, String user, String pass) throws JSchException {
-		session = sftp.getSession(user, site);
-		session.setPassword(pass);
-		if (port > 0) {
-			session.setPort(port);
+	private Session openSession(String site, int port, String user, String pass) throws JSchException {
+		Session session;
+		if (pool) {
+			session = SessionPool.borrow(site, port, user, pass, getSettings(), this::configure, 
+											getConnectTimeout());
+		} else {
+			session = sftp.getSession(user, site);
+			session.setPassword(pass);
+			if (port > 0) {
+				session.setPort(port);
+			}
+			configure(session);
+			session.connect(getConnectTimeout());
+		}
+		openSessions.add(session);
+		return session;
+	}
+
+	/**
+	 * Get the maximum time to connect and log in, so a server that does not respond
+	 * cannot block a transfer forever
+	 * 
+	 * @return timeout in milliseconds
+	 */
+	private int getConnectTimeout() {
+		return (int) TimeUnit.SECONDS.toMillis((stallTimeout != null) ? stallTimeout : STALL_TIMEOUT);
+	}
+
+	/**
+	 * Get a description of the settings applied by {@link #configure(Session)}.
+	 * Pooled sessions are only reused by steps with the same settings.
+	 * 
+	 * @return settings
+	 */
+	private String getSettings() {
+		return "insecure=" + insecure + ",compression=" + compression 
+				+ ",ciphers=" + ciphers + ",socketBufferSize=" + socketBufferSize;
+	}
+
+	/**
+	 * Configure a new session before connecting
+	 * 
+	 * @param session 
+	 */
+	private void configure(Session session) {
+		if (insecure) {
+			session.setConfig("StrictHostKeyChecking", "no");
+		}
+		if (compression) {
+			session.setConfig("compression.s2c", "zlib@openssh.com,zlib,none");
+			session.setConfig("compression.c2s", "zlib@openssh.com,zlib,none");
+		}
+		if (ciphers != null) {
+			session.setConfig("cipher.s2c", ciphers);
+			session.setConfig("cipher.c2s", ciphers);
+		}
+		if (socketBufferSize != null) {
+			session.setSocketFactory(new TunedSocketFactory(socketBufferSize));
+		}
+	}
+
+	/**
+	 * Close the session, or return it to the session pool
+	 * 
+	 * @param session
+	 */
+	private void closeSession(Session session) {
+		openSessions.remove(session);
+		if (pool) {
+			SessionPool.release(session);
+		} else {
+			session.disconnect();
 		}
-		session.connect();
 	}
 
 	/**
-	 * Download file from SFTP server
+	 * Open additional sessions to the same site
+	 * 
+	 * @param first session already opened to the site
+	 * @param nr total number of sessions
+	 * @param site
+	 * @param port
+	 * @param user
+	 * @param pass
+	 * @return list of sessions, starting with the first session
+	 * @throws JSchException 
+	 */
+	private List<Session> openSessions(Session first, int nr, String site, int port, String user, String pass) 
+			throws JSchException {
+		List<Session> list = new ArrayList<>(nr);
+		list.add(first);
+		for (int i = 1; i < nr; i++) {
+			list.add(openSession(site, port, user, pass));
+		}
+		return list;
+	}
+
+	/**
+	 * Close the additional sessions, but not the first one
+	 * 
+	 * @param list list of sessions
+	 */
+	private void closeSessions(List<Session> list) {
+		for (int i = 1; i < list.size(); i++) {
+			closeSession(list.get(i));
+		}
+	}
+
+	/**
+	 * Close a session after an error, the session is never reused
+	 * 
+	 * @param session
+	 */
+	private void abortSession(Session session) {
+		openSessions.remove(session);
+		if (pool) {
+			SessionPool.invalidate(session);
+		} else {
+			session.disconnect();
+		}
+	}
+
+	/**
+	 * Close all sessions after an error, the sessions are never reused
+	 */
+	private void abortSessions() {
+		for (Session session: openSessions) {
+			abortSession(session);
+		}
+	}
+
+	/**
+	 * Open an SFTP channel
+	 * 
+	 * @param session session
+	 * @return connected channel
+	 * @throws JSchException 
+	 */
+	private ChannelSftp openChannel(Session session) throws JSchException {
+		ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+		if (bulkRequests != null) {
+			// number of outstanding read/write requests
+			channel.setBulkRequests(bulkRequests);
+		}
+		channel.connect();
+		return channel;
+	}
+
+	/**
+	 * Check if a file name is a glob pattern
+	 * 
+	 * @param name file name
+	 * @return true if name contains wildcards
+	 */
+	private static boolean isGlob(String name) {
+		return name.indexOf('*') >= 0 || name.indexOf('?') >= 0;
+	}
+
+	/**
+	 * Get the name of a remote file, without the directory
+	 * 
+	 * @param path remote path
+	 * @return file name
+	 */
+	private static String getName(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * List the remote files when the source file is a glob pattern or a directory
+	 * 
+	 * @param channel SFTP channel
+	 * @return sorted list of remote files, or null if the source is a single file
+	 * @throws SftpException 
+	 */
+	private List<String> listRemote(ChannelSftp channel) throws SftpException {
+		String src = fromFile.toString();
+		boolean glob = isGlob(fromFile.getName());
+		if (!glob && !channel.stat(src).isDir()) {
+			return null;
+		}
+		String dir = glob ? fromFile.getParent() : src;
+		String prefix = (dir == null) ? "" : dir + "/";
+
+		List<String> files = new ArrayList<>();
+		for (Object o: channel.ls(src)) {
+			ChannelSftp.LsEntry entry = (ChannelSftp.LsEntry) o;
+			if (entry.getAttrs().isReg()) {
+				files.add(prefix + entry.getFilename());
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * List the local files when the source file is a glob pattern or a directory
+	 * 
+	 * @return sorted list of local files, or null if the source is a single file
+	 * @throws IOException
+	 */
+	private List<String> listLocal() throws IOException {
+		Path src = fromFile.toPath();
+		boolean glob = isGlob(fromFile.getName());
+		if (!glob && !Files.isDirectory(src)) {
+			return null;
+		}
+		Path dir = glob ? src.toAbsolutePath().getParent() : src;
+		String pattern = glob ? fromFile.getName() : "*";
+
+		List<String> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, pattern)) {
+			for (Path p: stream) {
+				if (Files.isRegularFile(p)) {
+					files.add(p.toString());
+				}
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Get the persistent user data of the step, used to keep track of partial transfers
+	 * 
+	 * @return properties
+	 */
+	private Properties getState() {
+		Serializable data = stepContext.getPersistentUserData();
+		Properties props = (data instanceof Properties) ? (Properties) data : new Properties();
+		stepContext.setPersistentUserData(props);
+		return props;
+	}
+
+	/**
+	 * Throw an exception when the step was stopped while transferring, 
+	 * since an interrupted get or put returns as if the transfer was complete.
+	 * 
+	 * @throws InterruptedIOException 
+	 */
+	private void checkStopped() throws InterruptedIOException {
+		if (progress.isStopped()) {
+			throw new InterruptedIOException("Transfer stopped");
+		}
+	}
+
+	/**
+	 * Download a file into a part file, continuing where a previous attempt stopped.
+	 * The part file is only reused when the size and modification time of the remote file
+	 * are the same as those stored in the persistent user data of the step.
+	 * 
+	 * @param channel SFTP channel
+	 * @param src remote file
+	 * @param target local file
+	 * @throws SftpException
+	 * @throws IOException 
+	 */
+	private void resumeFile(ChannelSftp channel, String src, Path target) throws SftpException, IOException {
+		SftpATTRS attrs = channel.stat(src);
+		String key = "resume." + src;
+		String version = attrs.getSize() + "/" + attrs.getMTime();
+		Path part = Paths.get(target.toString() + ".part");
+
+		long offset = Files.exists(part) ? Files.size(part) : 0;
+		if (offset > 0 && (!version.equals(state.getProperty(key)) || offset > attrs.getSize())) {
+			logger.log(Level.INFO, "Remote file {0} changed, restarting download", src);
+			Files.delete(part);
+			offset = 0;
+		}
+		state.setProperty(key, version);
+
+		if (offset > 0) {
+			logger.log(Level.INFO, "Resuming download of {0} at byte {1}", new String[] { src, Long.toString(offset) });
+		}
+		channel.get(src, part.toString(), new TransferMonitor(progress, limiters, offset), 
+					(offset > 0) ? ChannelSftp.RESUME : ChannelSftp.OVERWRITE);
+		// keep the part file, so a restart of the job can resume
+		checkStopped();
+		AtomicFiles.commit(part, target, fsync);
+		state.remove(key);
+	}
+
+	/**
+	 * Download a single file
+	 * 
+	 * @param channel SFTP channel
+	 * @param src remote file
+	 * @param target local file
+	 * @throws JSchException
+	 * @throws SftpException
+	 * @throws IOException 
+	 */
+	private void getFile(ChannelSftp channel, String src, Path target) 
+			throws JSchException, SftpException, IOException {
+		if (resume) {
+			resumeFile(channel, src, target);
+			return;
+		}
+		writeFile(target, dest -> channel.get(src, dest.toString(), new TransferMonitor(progress, limiters)));
+	}
+
+	/**
+	 * Write a local file, using a temporary file when the download has to be atomic
+	 * 
+	 * @param target local file
+	 * @param writer download into the destination
+	 * @throws JSchException
+	 * @throws SftpException
+	 * @throws IOException 
+	 */
+	private void writeFile(Path target, Writer writer) throws JSchException, SftpException, IOException {
+		Path dest = atomic ? AtomicFiles.createTemp(target) : target;
+		boolean done = false;
+		try {
+			writer.write(dest);
+			checkStopped();
+
+			if (atomic) {
+				AtomicFiles.commit(dest, target, fsync);
+			} else if (fsync) {
+				AtomicFiles.sync(target);
+			}
+			done = true;
+		} finally {
+			// do not leave an incomplete file behind when stopped
+			if (atomic || (!done && progress.isStopped())) {
+				Files.deleteIfExists(dest);
+			}
+		}
+	}
+
+	/**
+	 * Upload a single file.
+	 * When resuming, the upload continues at the end of the remote file,
+	 * provided the local file did not change since the previous attempt.
+	 * 
+	 * @param channel SFTP channel
+	 * @param src local file
+	 * @param dest remote file
+	 * @throws SftpException 
+	 * @throws IOException 
+	 */
+	private void putFile(ChannelSftp channel, String src, String dest) throws SftpException, IOException {
+		if (!resume) {
+			channel.put(src, dest, new TransferMonitor(progress, limiters));
+			if (progress.isStopped()) {
+				channel.rm(dest);
+				checkStopped();
+			}
+			return;
+		}
+		Path p = Paths.get(src);
+		String key = "resume." + src;
+		String version = Files.size(p) + "/" + Files.getLastModifiedTime(p).toMillis();
+
+		int mode = ChannelSftp.OVERWRITE;
+		long offset = 0;
+		if (version.equals(state.getProperty(key))) {
+			try {
+				offset = channel.stat(dest).getSize();
+				mode = ChannelSftp.RESUME;
+				logger.log(Level.INFO, "Resuming upload of {0} at byte {1}", new String[] { src, Long.toString(offset) });
+			} catch (SftpException e) {
+				logger.log(Level.INFO, "Nothing to resume for {0}", dest);
+			}
+		}
+		state.setProperty(key, version);
+
+		channel.put(src, dest, new TransferMonitor(progress, limiters, offset), mode);
+		// keep the remote file, so a restart of the job can resume
+		checkStopped();
+		state.remove(key);
+	}
+
+	/**
+	 * Store the result per file in the persistent user data of the step
+	 * 
+	 * @param results results per file
+	 * @param failed number of failed files
+	 */
+	private void publishResults(Map<String, String> results, int failed) {
+		for (Map.Entry<String, String> result: results.entrySet()) {
+			state.setProperty("file." + result.getKey(), result.getValue());
+		}
+		state.setProperty("files.total", String.valueOf(results.size()));
+		state.setProperty("files.failed", String.valueOf(failed));
+	}
+
+	/**
+	 * Transfer multiple files in parallel, using one or more sessions to the same site.
+	 * Each worker opens its own channel and takes files from a shared queue.
+	 * 
+	 * @param files files to transfer
+	 * @param first session already opened to the site
+	 * @param site
+	 * @param port
+	 * @param user
+	 * @param pass
+	 * @param transfer transfer of a single file
+	 * @return number of files that could not be transferred
+	 * @throws JSchException 
+	 */
+	private int transferAll(List<String> files, Session first, String site, int port, String user, 
+								String pass, Transfer transfer) throws JSchException {
+		int nrChannels = Math.max(1, Math.min((channels != null) ? channels : 1, files.size()));
+		int nrSessions = Math.min((sessions != null) ? sessions : 1, nrChannels);
+
+		List<Session> list = openSessions(first, nrSessions, site, port, user, pass);
+		logger.log(Level.INFO, "Transferring {0} files using {1} channels on {2} sessions", 
+								new Object[] { files.size(), nrChannels, nrSessions });
+
+		Queue<String> queue = new ConcurrentLinkedQueue<>(files);
+		Map<String, String> results = new ConcurrentSkipListMap<>();
+
+		ExecutorService executor = Executors.newFixedThreadPool(nrChannels);
+		List<Future<?>> futures = new ArrayList<>(nrChannels);
+		for (int i = 0; i < nrChannels; i++) {
+			Session session = list.get(i % nrSessions);
+			futures.add(executor.submit(() -> {
+				ChannelSftp channel = openChannel(session);
+				try {
+					String file;
+					while (!progress.isStopped() && (file = queue.poll()) != null) {
+						try {
+							transfer.transfer(channel, file);
+							results.put(file, BatchStatus.COMPLETED.toString());
+						} catch (JSchException | SftpException | IOException e) {
+							logger.log(Level.WARNING, "Transfer of {0} failed: {1}", new String[] { file, e.getMessage() });
+							results.put(file, BatchStatus.FAILED.toString() + " " + e.getMessage());
+						}
+					}
+				} finally {
+					channel.disconnect();
+				}
+				return null;
+			}));
+		}
+		executor.shutdown();
+
+		for (Future<?> f: futures) {
+			try {
+				f.get();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				executor.shutdownNow();
+			} catch (ExecutionException ee) {
+				logger.log(Level.WARNING, "Channel failed: {0}", ee.getCause().getMessage());
+			}
+		}
+		// files not picked up by any channel
+		String status = progress.isStopped() ? BatchStatus.STOPPED.toString() : BatchStatus.FAILED.toString();
+		for (String file: queue) {
+			results.put(file, status + " not transferred");
+		}
+		closeSessions(list);
+
+		int failed = (int) results.values().stream().filter(r -> !r.equals(BatchStatus.COMPLETED.toString())).count();
+		publishResults(results, failed);
+		logger.log(Level.INFO, "Transferred {0} of {1} files", new Object[] { files.size() - failed, files.size() });
+		return failed;
+	}
+
+	/**
+	 * Download a range of a remote file and write it at the same position in the local file
+	 * 
+	 * @param channel SFTP channel
+	 * @param src remote file
+	 * @param file local file channel
+	 * @param from start position
+	 * @param len number of bytes
+	 * @throws SftpException
+	 * @throws IOException 
+	 */
+	private void getChunk(ChannelSftp channel, String src, FileChannel file, long from, long len) 
+			throws SftpException, IOException {
+		TransferMonitor monitor = new TransferMonitor(progress, limiters);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long pos = from;
+		long end = from + len;
+
+		try (InputStream in = channel.get(src, null, from)) {
+			while (pos < end) {
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, end - pos));
+				if (n < 0) {
+					throw new IOException("Unexpected end of " + src + " at byte " + pos);
+				}
+				ByteBuffer buf = ByteBuffer.wrap(buffer, 0, n);
+				while (buf.hasRemaining()) {
+					pos += file.write(buf, pos);
+				}
+				if (!monitor.count(n)) {
+					throw new InterruptedIOException("Download interrupted");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Download a single file in chunks, using multiple channels in parallel.
+	 * The file is preallocated and each chunk is written at its own offset.
+	 * 
+	 * @param first session already opened to the site
+	 * @param src remote file
+	 * @param file local file
+	 * @param size size of the remote file
+	 * @throws JSchException
+	 * @throws IOException 
+	 */
+	private void getChunks(Session first, String src, Path file, long size) throws JSchException, IOException {
+		long chunk = (chunkSize != null) ? chunkSize : (size + channels - 1) / channels;
+		int nrChannels = (int) Math.min(channels, (size + chunk - 1) / chunk);
+		int nrSessions = Math.min((sessions != null) ? sessions : 1, nrChannels);
+		logger.log(Level.INFO, "Using {0} channels, chunks of {1} bytes", new Object[] { nrChannels, chunk });
+		progress.expect(size);
+
+		List<Session> list = openSessions(first, nrSessions, fromSite, fromPort, fromUser, fromPass);
+		// all channels, including the ones taken by running tasks, are disconnected when done
+		List<ChannelSftp> opened = new ArrayList<>(nrChannels);
+		BlockingQueue<ChannelSftp> idle = new ArrayBlockingQueue<>(nrChannels);
+		ExecutorService executor = Executors.newFixedThreadPool(nrChannels);
+		boolean done = false;
+
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			for (int i = 0; i < nrChannels; i++) {
+				ChannelSftp sftpChannel = openChannel(list.get(i % nrSessions));
+				opened.add(sftpChannel);
+				idle.add(sftpChannel);
+			}
+			raf.setLength(size);
+			FileChannel channel = raf.getChannel();
+
+			List<Future<Void>> futures = new ArrayList<>();
+			for (long start = 0; start < size; start += chunk) {
+				long from = start;
+				long len = Math.min(chunk, size - start);
+				futures.add(executor.submit(() -> {
+					ChannelSftp sftpChannel = idle.take();
+					try {
+						getChunk(sftpChannel, src, channel, from, len);
+					} finally {
+						idle.add(sftpChannel);
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> f: futures) {
+				f.get();
+			}
+			done = true;
+		} catch (ExecutionException ee) {
+			checkStopped();
+			throw new IOException(ee.getCause());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Download interrupted");
+		} finally {
+			executor.shutdownNow();
+			for (ChannelSftp c: opened) {
+				c.disconnect();
+			}
+			closeSessions(list);
+			// a preallocated file has the expected size, never leave an incomplete one behind
+			if (!done) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	/**
+	 * List all regular files in a remote directory tree
+	 * 
+	 * @param channel SFTP channel
+	 * @param dir remote directory
+	 * @param prefix path relative to the root directory of the tree
+	 * @param files map of relative paths and attributes to add to
+	 * @throws SftpException 
+	 */
+	private static void listTree(ChannelSftp channel, String dir, String prefix, Map<String, SftpATTRS> files) 
+			throws SftpException {
+		for (Object o: channel.ls(dir)) {
+			ChannelSftp.LsEntry entry = (ChannelSftp.LsEntry) o;
+			String name = entry.getFilename();
+			if (name.equals(".") || name.equals("..")) {
+				continue;
+			}
+			if (entry.getAttrs().isDir()) {
+				listTree(channel, dir + "/" + name, prefix + name + "/", files);
+			} else if (entry.getAttrs().isReg()) {
+				files.put(prefix + name, entry.getAttrs());
+			}
+		}
+	}
+
+	/**
+	 * Check if a local file has the same size and modification time as the remote file
+	 * 
+	 * @param file local file
+	 * @param attrs attributes of the remote file
+	 * @return true if the file is unchanged
+	 * @throws IOException 
+	 */
+	private static boolean isUnchanged(Path file, SftpATTRS attrs) throws IOException {
+		return Files.isRegularFile(file) && Files.size(file) == attrs.getSize()
+				&& Files.getLastModifiedTime(file).to(TimeUnit.SECONDS) == attrs.getMTime();
+	}
+
+	/**
+	 * List local files that are no longer present in the remote directory tree
+	 * 
+	 * @param dir local directory
+	 * @param remote relative paths of the remote files
+	 * @return list of local files
+	 * @throws IOException 
+	 */
+	private static List<Path> listVanished(Path dir, Set<String> remote) throws IOException {
+		try (Stream<Path> stream = Files.walk(dir)) {
+			return stream.filter(Files::isRegularFile)
+						.filter(p -> !remote.contains(dir.relativize(p).toString().replace(File.separatorChar, '/')))
+						.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Delete local files, and the directories that became empty (except for the root directory)
+	 * 
+	 * @param dir local root directory
+	 * @param vanished local files to delete
+	 * @throws IOException 
+	 */
+	private static void deleteVanished(Path dir, List<Path> vanished) throws IOException {
+		for (Path p: vanished) {
+			logger.log(Level.FINE, "Deleting {0}", p);
+			Files.delete(p);
+
+			Path parent = p.getParent();
+			while (!parent.equals(dir) && isEmptyDir(parent)) {
+				logger.log(Level.FINE, "Deleting empty directory {0}", parent);
+				Files.delete(parent);
+				parent = parent.getParent();
+			}
+		}
+	}
+
+	/**
+	 * Check if a local directory is empty
+	 * 
+	 * @param dir directory
+	 * @return true if empty
+	 * @throws IOException 
+	 */
+	private static boolean isEmptyDir(Path dir) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			return !stream.iterator().hasNext();
+		}
+	}
+
+	/**
+	 * Synchronise a local directory with a remote directory, only downloading new or changed files.
+	 * The modification time of the downloaded files is set to the one of the remote files.
+	 * 
+	 * @param channel SFTP channel
+	 * @param session session already opened to the site
+	 * @return true if all files were transferred
+	 * @throws JSchException
+	 * @throws SftpException
+	 * @throws IOException 
+	 */
+	private boolean synchronize(ChannelSftp channel, Session session) throws JSchException, SftpException, IOException {
+		String root = fromFile.toString();
+		Map<String, SftpATTRS> remote = new TreeMap<>();
+		listTree(channel, root, "", remote);
+		channel.disconnect();
+
+		Path dir = toFile.toPath();
+		Files.createDirectories(dir);
+
+		List<String> changed = new ArrayList<>();
+		for (Map.Entry<String, SftpATTRS> e: remote.entrySet()) {
+			if (!isUnchanged(dir.resolve(e.getKey()), e.getValue())) {
+				changed.add(e.getKey());
+			}
+		}
+		int skipped = remote.size() - changed.size();
+		logger.log(Level.INFO, "{0} files changed, {1} unchanged", new Object[] { changed.size(), skipped });
+
+		int failed = 0;
+		if (!changed.isEmpty()) {
+			failed = transferAll(changed, session, fromSite, fromPort, fromUser, fromPass, (ch, file) -> {
+				Path target = dir.resolve(file);
+				Files.createDirectories(target.getParent());
+				getFile(ch, root + "/" + file, target);
+				Files.setLastModifiedTime(target, FileTime.from(remote.get(file).getMTime(), TimeUnit.SECONDS));
+			});
+		}
+		int deleted = 0;
+		if (deleteVanished) {
+			List<Path> vanished = listVanished(dir, remote.keySet());
+			// a remote directory that is (temporarily) empty or wrong must not wipe the local mirror
+			if (remote.isEmpty() && !vanished.isEmpty()) {
+				logger.log(Level.SEVERE, "Remote directory {0} is empty, not deleting {1} local files", 
+							new Object[] { root, vanished.size() });
+				return false;
+			}
+			deleteVanished(dir, vanished);
+			deleted = vanished.size();
+		}
+
+		int transferred = changed.size() - failed;
+		logger.log(Level.INFO, "Synchronised {0}: {1} skipped, {2} transferred, {3} failed, {4} deleted", 
+				new Object[] { root, skipped, transferred, failed, deleted });
+		state.setProperty("sync.skipped", String.valueOf(skipped));
+		state.setProperty("sync.transferred", String.valueOf(transferred));
+		state.setProperty("sync.deleted", String.valueOf(deleted));
+		return failed == 0;
+	}
+
+	/**
+	 * Download file(s) from SFTP server
 	 * 
 	 * @return
 	 * @throws JSchException
 	 * @throws SftpException 
+	 * @throws IOException 
 	 */
-	private boolean download() throws JSchException, SftpException {
+	private boolean download() throws JSchException, SftpException, IOException {
 		logger.log(Level.INFO, "Download {0} from server {1}", new String[] { fromFile.toString(), fromSite });
 			
 		if (fromUser == null || fromPass == null) {
 			logger.severe("User or password is empty");
 			return false;
 		}
-		openSession(fromSite, fromPort, fromUser, fromPass);
+		Session session = openSession(fromSite, fromPort, fromUser, fromPass);
 
-		ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
-		channel.connect();
-		channel.get(fromFile.toString(), toFile.toString());
+		ChannelSftp channel = openChannel(session);
+		if (sync) {
+			boolean ok = synchronize(channel, session);
+			closeSession(session);
+			return ok;
+		}
+		List<String> files = listRemote(channel);
+		if (files == null) {
+			String src = fromFile.toString();
+			long size = channel.stat(src).getSize();
+			if (channels != null && channels > 1 && !resume && size > 0) {
+				channel.disconnect();
+				writeFile(toFile.toPath(), dest -> getChunks(session, src, dest, size));
+			} else {
+				getFile(channel, src, toFile.toPath());
+				channel.disconnect();
+			}
+			closeSession(session);
+			return true;
+		}
 		channel.disconnect();
 
-		session.disconnect();
+		Path dir = toFile.toPath();
+		Files.createDirectories(dir);
+		boolean ok = transferAll(files, session, fromSite, fromPort, fromUser, fromPass, 
+							(ch, file) -> getFile(ch, file, dir.resolve(getName(file)))) == 0;
+		closeSession(session);
 
-		return true;
+		return ok;
 	}
 
 	/**
-	 * Upload file to SFTP server
+	 * Upload file(s) to SFTP server
 	 * 
 	 * @return
 	 * @throws JSchException
 	 * @throws SftpException 
+	 * @throws IOException 
 	 */
-	private boolean upload() throws JSchException, SftpException {
+	private boolean upload() throws JSchException, SftpException, IOException {
 		logger.log(Level.INFO, "Upload {0} to server {1}", new String[] { fromFile.toString(), toSite });
 
 		if (toUser == null || toPass == null) {
 			logger.severe("User or password is empty");
 			return false;
 		}
-		if (!fromFile.exists()) {
+		List<String> files = listLocal();
+		if (files == null && !fromFile.exists()) {
 			logger.severe("File to upload not found");
 			return false;
 		}
-		openSession(toSite, toPort, toUser, toPass);
+		Session session = openSession(toSite, toPort, toUser, toPass);
 
-		ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
-		channel.connect();
-		channel.put(fromFile.toString(), toFile.toString());
-		channel.disconnect();
+		if (files == null) {
+			ChannelSftp channel = openChannel(session);
+			putFile(channel, fromFile.toString(), toFile.toString());
+			channel.disconnect();
+			closeSession(session);
+			return true;
+		}
+
+		String dir = toFile.toString();
+		boolean ok = transferAll(files, session, toSite, toPort, toUser, toPass,
+							(ch, file) -> putFile(ch, file, dir + "/" + Paths.get(file).getFileName())) == 0;
+		closeSession(session);
+
+		return ok;
+	}
+
+	/**
+	 * Relay a file from one SFTP server to another, without storing it locally.
+	 * A separate thread reads from the source into a bounded in-memory pipe, 
+	 * while the upload to the destination reads from the other end.
+	 * 
+	 * @return
+	 * @throws JSchException
+	 * @throws SftpException
+	 * @throws IOException 
+	 */
+	private boolean relay() throws JSchException, SftpException, IOException {
+		logger.log(Level.INFO, "Relay {0} from server {1} to {2} on server {3}", 
+					new String[] { fromFile.toString(), fromSite, toFile.toString(), toSite });
+
+		if (fromUser == null || fromPass == null || toUser == null || toPass == null) {
+			logger.severe("User or password is empty");
+			return false;
+		}
+		Session source = openSession(fromSite, fromPort, fromUser, fromPass);
+		Session dest = openSession(toSite, toPort, toUser, toPass);
+		ChannelSftp in = openChannel(source);
+		ChannelSftp out = openChannel(dest);
 
-		session.disconnect();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		AtomicBoolean complete = new AtomicBoolean();
+		PipedInputStream pipe = new PipedInputStream(RELAY_BUFFER_SIZE);
+		try {
+			PipedOutputStream sink = new PipedOutputStream(pipe);
+			Future<Void> reader = executor.submit(() -> {
+				try (InputStream is = in.get(fromFile.toString(), new TransferMonitor(progress, limiters))) {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int n;
+					while ((n = is.read(buffer)) >= 0) {
+						sink.write(buffer, 0, n);
+					}
+					checkStopped();
+					complete.set(true);
+				} finally {
+					sink.close();
+				}
+				return null;
+			});
+			try {
+				out.put(new PipedSource(pipe, complete, fromFile.toString()), toFile.toString());
+			} catch (SftpException e) {
+				if (reader.isDone() && !complete.get()) {
+					// report the error on the source side
+					reader.get();
+				}
+				throw e;
+			} finally {
+				// unblock the reader when the upload failed
+				pipe.close();
+			}
+			reader.get();
+		} catch (ExecutionException ee) {
+			throw new IOException(ee.getCause());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Relay interrupted");
+		} finally {
+			executor.shutdownNow();
+			in.disconnect();
+			out.disconnect();
+		}
+		closeSession(source);
+		closeSession(dest);
 
 		return true;
 	}
 
+	/**
+	 * Get the list of destination sites.
+	 * A site can include a port number (host:port or [IPv6 address]:port), user and password can be
+	 * a single value or a list with the same number of items as the list of sites.
+	 * A comma that is part of a user or password must be escaped with a backslash.
+	 * 
+	 * @return list of destinations or null when the lists do not match
+	 */
+	private List<Destination> getDestinations() {
+		String[] sites = toSite.split(",");
+		String[] users = splitList(toUser);
+		String[] passes = splitList(toPass);
+		if ((users.length != 1 && users.length != sites.length) 
+				|| (passes.length != 1 && passes.length != sites.length)) {
+			logger.severe("Number of users or passwords does not match number of sites");
+			return null;
+		}
+
+		List<Destination> list = new ArrayList<>(sites.length);
+		for (int i = 0; i < sites.length; i++) {
+			String site = sites[i].strip();
+			String portStr = null;
+			if (site.startsWith("[")) {
+				int end = site.indexOf(']');
+				if (end < 0 || (end + 1 < site.length() && site.charAt(end + 1) != ':')) {
+					logger.log(Level.SEVERE, "Invalid site {0}", site);
+					return null;
+				}
+				portStr = (end + 1 < site.length()) ? site.substring(end + 2) : null;
+				site = site.substring(1, end);
+			} else if (site.indexOf(':') > 0 && site.indexOf(':') == site.lastIndexOf(':')) {
+				// a bare IPv6 address contains multiple colons and no port
+				int colon = site.indexOf(':');
+				portStr = site.substring(colon + 1);
+				site = site.substring(0, colon);
+			}
+			int port = toPort;
+			if (portStr != null) {
+				try {
+					port = Integer.parseInt(portStr);
+				} catch (NumberFormatException nfe) {
+					port = -1;
+				}
+				if (port < 1 || port > 65535) {
+					logger.log(Level.SEVERE, "Invalid port {0} for site {1}", new String[] { portStr, site });
+					return null;
+				}
+			}
+			String user = (users.length == 1) ? users[0] : users[i];
+			String pass = (passes.length == 1) ? passes[0] : passes[i];
+			list.add(new Destination(site, port, user.strip(), pass));
+		}
+		return list;
+	}
+
+	/**
+	 * Split a comma-separated list.
+	 * A backslash escapes a comma or a backslash, so the list items can contain commas.
+	 * 
+	 * @param value comma-separated list
+	 * @return list items
+	 */
+	private static String[] splitList(String value) {
+		List<String> items = new ArrayList<>();
+		StringBuilder item = new StringBuilder();
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length() 
+					&& (value.charAt(i + 1) == ',' || value.charAt(i + 1) == '\\')) {
+				item.append(value.charAt(++i));
+			} else if (c == ',') {
+				items.add(item.toString());
+				item.setLength(0);
+			} else {
+				item.append(c);
+			}
+		}
+		items.add(item.toString());
+		return items.toArray(new String[0]);
+	}
+
+	/**
+	 * Upload a file to a destination, reading from a pipe
+	 * 
+	 * @param dest destination
+	 * @param source receiving end of the pipe
+	 * @throws JSchException
+	 * @throws SftpException 
+	 */
+	private void putPiped(Destination dest, PipedSource source) throws JSchException, SftpException {
+		Session session = openSession(dest.site, dest.port, dest.user, dest.pass);
+		// allows the watchdog to abort a stalled upload
+		dest.session = session;
+		try {
+			ChannelSftp channel = openChannel(session);
+			channel.put(source, toFile.toString());
+			channel.disconnect();
+		} catch (JSchException | SftpException e) {
+			abortSession(session);
+			throw e;
+		}
+		closeSession(session);
+	}
+
+	/**
+	 * Mark a destination of a fan-out upload as failed because it stopped reading from its pipe.
+	 * Closing the pipe unblocks the thread feeding the pipes, aborting the session unblocks the upload.
+	 * 
+	 * @param dest stalled destination
+	 * @param source receiving end of the pipe
+	 * @param future upload task
+	 * @param results results per destination
+	 */
+	private void abortStalled(Destination dest, PipedSource source, Future<?> future, Map<String, String> results) {
+		dest.stalled = true;
+		logger.log(Level.WARNING, "Upload to {0} stalled", dest.toString());
+		results.put(dest.toString(), BatchStatus.FAILED.toString() + " stalled");
+		future.cancel(true);
+		try {
+			source.close();
+		} catch (IOException ioe) {
+			// pipe already closed
+		}
+		Session session = dest.session;
+		if (session != null) {
+			abortSession(session);
+		}
+	}
+
+	/**
+	 * Upload a file to multiple servers concurrently, reading the local file only once.
+	 * Each destination reads from its own bounded pipe, fed by the thread reading the file.
+	 * A failing destination does not stop the upload to the other destinations,
+	 * a destination that stops reading from its pipe is marked as failed after a timeout.
+	 * 
+	 * @return true if at least the minimum number of destinations succeeded
+	 * @throws IOException 
+	 */
+	private boolean fanOut() throws IOException {
+		logger.log(Level.INFO, "Upload {0} to servers {1}", new String[] { fromFile.toString(), toSite });
+
+		if (toUser == null || toPass == null) {
+			logger.severe("User or password is empty");
+			return false;
+		}
+		if (!fromFile.isFile()) {
+			logger.severe("File to upload not found");
+			return false;
+		}
+		List<Destination> dests = getDestinations();
+		if (dests == null) {
+			return false;
+		}
+		int nr = dests.size();
+
+		AtomicBoolean complete = new AtomicBoolean();
+		Map<String, String> results = new ConcurrentSkipListMap<>();
+		List<PipedOutputStream> sinks = new ArrayList<>(nr);
+		List<PipedSource> sources = new ArrayList<>(nr);
+		List<Future<?>> futures = new ArrayList<>(nr);
+		ExecutorService executor = Executors.newFixedThreadPool(nr);
+		ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+
+		try {
+			for (Destination dest: dests) {
+				PipedInputStream pipe = new PipedInputStream(RELAY_BUFFER_SIZE);
+				PipedSource source = new PipedSource(pipe, complete, fromFile.toString());
+				sinks.add(new PipedOutputStream(pipe));
+				sources.add(source);
+				futures.add(executor.submit(() -> {
+					try {
+						putPiped(dest, source);
+						if (!dest.stalled) {
+							results.put(dest.toString(), BatchStatus.COMPLETED.toString());
+						}
+					} catch (JSchException | SftpException e) {
+						if (!dest.stalled) {
+							logger.log(Level.WARNING, "Upload to {0} failed: {1}", new String[] { dest.toString(), e.getMessage() });
+							results.put(dest.toString(), BatchStatus.FAILED.toString() + " " + e.getMessage());
+						}
+					} finally {
+						// unblock the thread feeding the pipe
+						source.close();
+					}
+					return null;
+				}));
+			}
+			long timeout = TimeUnit.MILLISECONDS.toNanos(getConnectTimeout());
+			watchdog.scheduleWithFixedDelay(() -> {
+				for (int i = 0; i < nr; i++) {
+					if (!futures.get(i).isDone() && sources.get(i).isStalled(timeout)) {
+						abortStalled(dests.get(i), sources.get(i), futures.get(i), results);
+					}
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+
+			TransferMonitor monitor = new TransferMonitor(progress, limiters);
+			progress.expect(fromFile.length());
+			try (InputStream in = Files.newInputStream(fromFile.toPath())) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n;
+				boolean alive = true;
+				while (alive && (n = in.read(buffer)) >= 0) {
+					alive = false;
+					for (int i = 0; i < nr; i++) {
+						PipedOutputStream sink = sinks.get(i);
+						if (sink == null) {
+							continue;
+						}
+						try {
+							sink.write(buffer, 0, n);
+							alive = true;
+						} catch (IOException ioe) {
+							// destination failed, continue with the others
+							sinks.set(i, null);
+						}
+					}
+					if (!monitor.count(n)) {
+						throw new InterruptedIOException("Upload interrupted");
+					}
+				}
+				complete.set(alive);
+			} finally {
+				for (PipedOutputStream sink: sinks) {
+					if (sink != null) {
+						try {
+							sink.close();
+						} catch (IOException ioe) {
+							// destination already failed
+						}
+					}
+				}
+			}
+
+			for (Future<?> f: futures) {
+				try {
+					f.get();
+				} catch (CancellationException ce) {
+					// stalled destination, already marked as failed
+				}
+			}
+		} catch (ExecutionException ee) {
+			throw new IOException(ee.getCause());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Upload interrupted");
+		} finally {
+			watchdog.shutdownNow();
+			executor.shutdownNow();
+		}
+
+		long success = results.values().stream().filter(r -> r.equals(BatchStatus.COMPLETED.toString())).count();
+		for (Map.Entry<String, String> result: results.entrySet()) {
+			state.setProperty("site." + result.getKey(), result.getValue());
+		}
+		int required = (minSuccess != null) ? Math.min(minSuccess, nr) : nr;
+		logger.log(Level.INFO, "Uploaded to {0} of {1} servers, {2} required", new Object[] { success, nr, required });
+		return success >= required;
+	}
+
 	@Override
 	public String process() throws Exception {
 		// check parameters 
@@ -201,25 +1453,48 @@ public class SftpBatchlet extends AbstractBatchlet {
 		}
 		
 		sftp = new JSch();
-		if (insecure) {
-			sftp.setConfig("StrictHostKeyChecking", "no");
-		}
 
+		metrics = new TransferMetrics();
+		limiters = RateLimiter.limiters(maxBytesPerSecond);
+		state = getState();
+		progress = new TransferProgress(metrics, state, (progressInterval != null) ? progressInterval : 30);
+		// stop() may have been called before there was a transfer to stop
+		if (stopRequested) {
+			logger.info("Stopped before the transfer started");
+			return BatchStatus.STOPPED.toString();
+		}
 		try {
-			if (fromSite != null && !download()) {
-				return BatchStatus.FAILED.toString();
+			boolean ok;
+			if (fromSite != null && toSite != null) {
+				ok = relay();
+			} else if (fromSite != null) {
+				ok = download();
+			} else if (toSite.contains(",")) {
+				ok = fanOut();
+			} else {
+				ok = upload();
 			}
-
-			if (toSite != null && !upload()) {
+			if (progress.isStopped()) {
+				logger.info("Transfer stopped");
+				return BatchStatus.STOPPED.toString();
+			}
+			if (!ok) {
 				return BatchStatus.FAILED.toString();
 			}
-		} catch(JSchException | SftpException e) {
-			logger.log(Level.SEVERE, "Exception {0}", e.getMessage());
-
-			if (session != null) {
-				session.disconnect();
+		} catch(JSchException | SftpException | IOException e) {
+			abortSessions();
+			if (progress.isStopped()) {
+				logger.info("Transfer stopped");
+				return BatchStatus.STOPPED.toString();
 			}
+			logger.log(Level.SEVERE, "Exception {0}", e.getMessage());
 			return BatchStatus.FAILED.toString();
+		} finally {
+			progress.report();
+			metrics.finish();
+			metrics.publish(stepContext);
+			TransferStats.get(SftpBatchlet.class.getSimpleName()).add(metrics);
+			logger.log(Level.INFO, "Transferred {0}", metrics.getSummary());
 		}
 		
 		return BatchStatus.COMPLETED.toString();
@@ -227,8 +1502,15 @@ public class SftpBatchlet extends AbstractBatchlet {
 	
 	@Override
 	public void stop() {
-		if (session != null) {
-			session.disconnect();
+		stopRequested = true;
+		TransferProgress p = progress;
+		if (p == null) {
+			abortSessions();
+			return;
 		}
+		// let the progress monitors cancel the transfers, 
+		// only disconnect the sessions still blocked on the network after a grace period
+		p.stop();
+		CompletableFuture.delayedExecutor(STOP_GRACE, TimeUnit.SECONDS).execute(this::abortSessions);
 	}	
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.sftp;
+
+import be.fedict.batch.batchlets.common.RateLimiter;
+
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.util.List;
+
+/**
+ * Progress monitor counting the bytes transferred over an SFTP channel.
+ * Also used to limit the bandwidth, by blocking until the rate limiters allow the transfer to continue,
+ * and to cancel the transfer when the step is stopped.
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+class TransferMonitor implements SftpProgressMonitor {
+	private final TransferProgress progress;
+	private final List<RateLimiter> limiters;
+	private long skip;
+
+	@Override
+	public void init(int op, String src, String dest, long max) {
+		if (max != SftpProgressMonitor.UNKNOWN_SIZE) {
+			progress.expect(max - skip);
+		}
+	}
+
+	@Override
+	public boolean count(long count) {
+		if (progress.isStopped()) {
+			return false;
+		}
+		// JSch reports the bytes skipped when resuming as progress
+		if (skip > 0) {
+			long skipped = Math.min(skip, count);
+			skip -= skipped;
+			count -= skipped;
+		}
+		progress.add(count);
+		try {
+			for (RateLimiter limiter: limiters) {
+				limiter.acquire(count);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void end() {
+		// nothing to do
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param progress progress to update
+	 * @param limiters rate limiters
+	 */
+	TransferMonitor(TransferProgress progress, List<RateLimiter> limiters) {
+		this(progress, limiters, 0);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param progress progress to update
+	 * @param limiters rate limiters
+	 * @param skip number of bytes already transferred by a previous attempt
+	 */
+	TransferMonitor(TransferProgress progress, List<RateLimiter> limiters, long skip) {
+		this.progress = progress;
+		this.limiters = limiters;
+		this.skip = skip;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.sftp;
+
+import be.fedict.batch.batchlets.common.TransferMetrics;
+
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Progress of all transfers of a step, shared by the progress monitors of the individual transfers.
+ * The progress (bytes, throughput and estimated time remaining) is reported at a fixed interval,
+ * and the transfers check the stop flag.
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+class TransferProgress {
+	private static final Logger logger = Logger.getLogger(TransferProgress.class.getName());
+
+	private final TransferMetrics metrics;
+	private final Properties state;
+	private final long interval;
+	private final AtomicLong expected = new AtomicLong();
+	private final AtomicLong last = new AtomicLong(System.nanoTime());
+	private volatile boolean stopped;
+
+	/**
+	 * Get the metrics
+	 * 
+	 * @return metrics
+	 */
+	TransferMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Add the size of a transfer to the number of bytes expected in total
+	 * 
+	 * @param bytes size in bytes, ignored if unknown (negative)
+	 */
+	void expect(long bytes) {
+		if (bytes > 0) {
+			expected.addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * Add transferred bytes, and report the progress if the interval has passed
+	 * 
+	 * @param bytes number of bytes
+	 */
+	void add(long bytes) {
+		metrics.add(bytes);
+
+		long now = System.nanoTime();
+		long prev = last.get();
+		// only one thread reports
+		if (now - prev >= interval && last.compareAndSet(prev, now)) {
+			report();
+		}
+	}
+
+	/**
+	 * Log the progress and store it in the persistent user data of the step
+	 */
+	void report() {
+		long bytes = metrics.getBytes();
+		long total = expected.get();
+		double rate = metrics.getMBPerSecond();
+		long eta = (rate > 0 && total > 0) ? (long) Math.ceil(Math.max(0, total - bytes) / 1_048_576.0 / rate) : -1;
+
+		logger.log(Level.INFO, "Progress: {0} of {1} bytes, {2} MB/s, {3} s remaining", new String[] {
+			Long.toString(bytes), Long.toString(total), String.format(Locale.ROOT, "%.2f", rate), Long.toString(eta) });
+		state.setProperty("progress.bytes", String.valueOf(bytes));
+		state.setProperty("progress.expectedBytes", String.valueOf(total));
+		state.setProperty("progress.mbPerSecond", String.format(Locale.ROOT, "%.2f", rate));
+		state.setProperty("progress.etaSeconds", String.valueOf(eta));
+	}
+
+	/**
+	 * Ask the transfers to stop
+	 */
+	void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Check if the transfers have to stop
+	 * 
+	 * @return true if stopped
+	 */
+	boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param metrics metrics of the step
+	 * @param state persistent user data of the step
+	 * @param interval reporting interval in seconds
+	 */
+	TransferProgress(TransferMetrics metrics, Properties state, long interval) {
+		this.metrics = metrics;
+		this.state = state;
+		this.interval = TimeUnit.SECONDS.toNanos(interval);
+	}
+}
@@ -29,20 +29,33 @@ import be.fedict.batch.batchlets.test.BatchletTest;
 import com.github.stefanbirkner.fakesftpserver.rule.FakeSftpServerRule;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Reader;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.batch.runtime.BatchStatus;
 import org.jberet.runtime.JobExecutionImpl;
+import org.jberet.spi.JobOperatorContext;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -53,6 +66,8 @@ import org.junit.rules.TemporaryFolder;
  */
 
 public class SftpBatchletTest extends BatchletTest {
+	private static final Logger logger = Logger.getLogger(SftpBatchletTest.class.getName());
+
 	@Rule
 	public final FakeSftpServerRule server = new FakeSftpServerRule().setPort(1234).addUser("joe", "pass");
 
@@ -81,6 +96,383 @@ public class SftpBatchletTest extends BatchletTest {
 		assertTrue(file + " does not exist", Files.exists(file));
 	}
 	
+	@Test
+	public void testDownloadAtomic() throws Exception {
+		server.putFile("/file.txt", "dummy", StandardCharsets.UTF_8);
+
+		Path file = Paths.get(tmp.getRoot().toString(), "file.txt");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromSite", "localhost",
+							"fromPort", "1234",
+							"fromFile", "/file.txt",
+							"fromUser", "joe",
+							"fromPass", "pass",
+							"insecure", "true",
+							"toFile", file.toString(),
+							"atomic", "true",
+							"fsync", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals("dummy", Files.readString(file));
+		assertEquals(1, tmp.getRoot().list().length);
+	}
+	
+	@Test
+	public void testDownloadChunked() throws Exception {
+		server.putFile("/file.txt", "a somewhat longer dummy file", StandardCharsets.UTF_8);
+
+		Path file = Paths.get(tmp.getRoot().toString(), "file.txt");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromSite", "localhost",
+							"fromPort", "1234",
+							"fromFile", "/file.txt",
+							"fromUser", "joe",
+							"fromPass", "pass",
+							"insecure", "true",
+							"toFile", file.toString(),
+							"channels", "3",
+							"chunkSize", "5"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals("a somewhat longer dummy file", Files.readString(file));
+	}
+
+	@Test
+	public void testDownloadChunkedFailed() throws Exception {
+		byte[] data = new byte[2_000_000];
+		new Random(42).nextBytes(data);
+		server.putFile("/big.bin", data);
+
+		Path file = Paths.get(tmp.getRoot().toString(), "big.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromSite", "localhost",
+							"fromPort", "1234",
+							"fromFile", "/big.bin",
+							"fromUser", "joe",
+							"fromPass", "pass",
+							"insecure", "true",
+							"toFile", file.toString(),
+							"channels", "2",
+							"chunkSize", "100000",
+							"maxBytesPerSecond", "500000"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+		// remove the remote file while the chunks are being downloaded
+		Thread.sleep(1000);
+		server.deleteAllFilesAndDirectories();
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+		assertFalse("Incomplete file left behind", Files.exists(file));
+	}
+	
+	@Test
+	public void testDownloadResume() throws Exception {
+		server.putFile("/file.txt", "dummy", StandardCharsets.UTF_8);
+
+		Path file = Paths.get(tmp.getRoot().toString(), "file.txt");
+		Files.writeString(Paths.get(file.toString() + ".part"), "stale part");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromSite", "localhost",
+							"fromPort", "1234",
+							"fromFile", "/file.txt",
+							"fromUser", "joe",
+							"fromPass", "pass",
+							"insecure", "true",
+							"toFile", file.toString(),
+							"resume", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		// part file without state from a previous execution is not trusted
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals("dummy", Files.readString(file));
+		assertEquals(1, tmp.getRoot().list().length);
+	}
+	
+	@Test
+	public void testDownloadResumeRestarted() throws Exception {
+		byte[] data = new byte[2_000_000];
+		new Random(1).nextBytes(data);
+		server.putFile("/big.bin", data);
+
+		Path file = Paths.get(tmp.getRoot().toString(), "big.bin");
+		Path part = Paths.get(file.toString() + ".part");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromSite", "localhost",
+							"fromPort", "1234",
+							"fromFile", "/big.bin",
+							"fromUser", "joe",
+							"fromPass", "pass",
+							"insecure", "true",
+							"toFile", file.toString(),
+							"maxBytesPerSecond", "500000",
+							"resume", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props, true);
+		Thread.sleep(2000);
+		JobOperatorContext.getJobOperatorContext().getJobOperator().stop(execution.getExecutionId());
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.STOPPED, execution.getBatchStatus());
+		long partial = Files.size(part);
+		assertTrue("No partial download", partial > 0 && partial < data.length);
+
+		execution = restartBatchletJob(execution);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(data, Files.readAllBytes(file));
+		assertFalse("Part file still exists", Files.exists(part));
+		// only the remaining part was transferred
+		Properties state = (Properties) execution.getStepExecutions().get(0).getPersistentUserData();
+		assertEquals(data.length - partial, Long.parseLong(state.getProperty("metrics.bytes")));
+	}
+
+	@Test
+	public void testUploadResumeRestarted() throws Exception {
+		byte[] data = new byte[2_000_000];
+		new Random(1).nextBytes(data);
+		File file = tmp.newFile("big.bin");
+		Files.write(file.toPath(), data);
+
+		Properties props = new Properties();
+		props.putAll(Map.of("toSite", "localhost",
+							"toPort", "1234",
+							"toFile", "/big.bin",
+							"toUser", "joe",
+							"toPass", "pass",
+							"insecure", "true",
+							"fromFile", file.toString(),
+							"maxBytesPerSecond", "500000",
+							"resume", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props, true);
+		Thread.sleep(2000);
+		JobOperatorContext.getJobOperatorContext().getJobOperator().stop(execution.getExecutionId());
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.STOPPED, execution.getBatchStatus());
+		long partial = server.getFileContent("/big.bin").length;
+		assertTrue("No partial upload", partial > 0 && partial < data.length);
+
+		execution = restartBatchletJob(execution);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(data, server.getFileContent("/big.bin"));
+		// only the remaining part was transferred
+		Properties state = (Properties) execution.getStepExecutions().get(0).getPersistentUserData();
+		assertEquals(data.length - partial, Long.parseLong(state.getProperty("metrics.bytes")));
+	}
+
+	@Test
+	public void testDownloadStopped() throws Exception {
+		byte[] data = new byte[2_000_000];
+		new Random(1).nextBytes(data);
+		server.putFile("/big.bin", data);
+
+		Path file = Paths.get(tmp.getRoot().toString(), "big.bin");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromSite", "localhost",
+							"fromPort", "1234",
+							"fromFile", "/big.bin",
+							"fromUser", "joe",
+							"fromPass", "pass",
+							"insecure", "true",
+							"toFile", file.toString(),
+							"maxBytesPerSecond", "500000",
+							"progressInterval", "1"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+		Thread.sleep(2000);
+		JobOperatorContext.getJobOperatorContext().getJobOperator().stop(execution.getExecutionId());
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.STOPPED, execution.getBatchStatus());
+		assertFalse("Partial file not removed", Files.exists(file));
+
+		Properties state = (Properties) execution.getStepExecutions().get(0).getPersistentUserData();
+		assertEquals("2000000", state.getProperty("progress.expectedBytes"));
+		assertTrue(Long.parseLong(state.getProperty("progress.bytes")) > 0);
+	}
+
+	@Test
+	public void testDownloadPooled() throws Exception {
+		server.putFile("/file.txt", "dummy", StandardCharsets.UTF_8);
+		long opened = SessionPool.opened();
+
+		for (int i = 0; i < 3; i++) {
+			Path file = Paths.get(tmp.getRoot().toString(), "file" + i + ".txt");
+
+			Properties props = new Properties();
+			props.putAll(Map.of("fromSite", "localhost",
+								"fromPort", "1234",
+								"fromFile", "/file.txt",
+								"fromUser", "joe",
+								"fromPass", "pass",
+								"insecure", "true",
+								"toFile", file.toString(),
+								"pool", "true"));
+
+			JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+			execution.awaitTermination(10, TimeUnit.SECONDS);
+
+			assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+			assertEquals("dummy", Files.readString(file));
+		}
+		assertEquals("Pooled session not reused", 1, SessionPool.opened() - opened);
+	}
+	
+	@Test
+	public void testDownloadGlob() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			server.putFile("/drop/file" + i + ".csv", "dummy" + i, StandardCharsets.UTF_8);
+		}
+		server.putFile("/drop/other.txt", "dummy", StandardCharsets.UTF_8);
+
+		Path dir = Paths.get(tmp.getRoot().toString(), "drop");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromSite", "localhost",
+							"fromPort", "1234",
+							"fromFile", "/drop/*.csv",
+							"fromUser", "joe",
+							"fromPass", "pass",
+							"insecure", "true",
+							"toFile", dir.toString(),
+							"channels", "4"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals(10, dir.toFile().list().length);
+		assertEquals("dummy3", Files.readString(dir.resolve("file3.csv")));
+	}
+	
+	@Test
+	public void testSync() throws Exception {
+		server.putFile("/mirror/a.txt", "dummy", StandardCharsets.UTF_8);
+		server.putFile("/mirror/sub/b.txt", "dummy", StandardCharsets.UTF_8);
+
+		Path dir = Paths.get(tmp.getRoot().toString(), "mirror");
+		Files.createDirectories(dir);
+		Files.writeString(dir.resolve("vanished.txt"), "dummy");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromSite", "localhost",
+							"fromPort", "1234",
+							"fromFile", "/mirror",
+							"fromUser", "joe",
+							"fromPass", "pass",
+							"insecure", "true",
+							"toFile", dir.toString(),
+							"sync", "true",
+							"deleteVanished", "true"));
+
+		for (String transferred: new String[] { "2", "0" }) {
+			JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+			execution.awaitTermination(10, TimeUnit.SECONDS);
+
+			assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+			Properties state = (Properties) execution.getStepExecutions().get(0).getPersistentUserData();
+			assertEquals(transferred, state.getProperty("sync.transferred"));
+		}
+		assertEquals("dummy", Files.readString(dir.resolve("sub/b.txt")));
+		assertFalse(Files.exists(dir.resolve("vanished.txt")));
+	}
+
+	@Test
+	public void testSyncVanishedDirectory() throws Exception {
+		server.putFile("/mirror/a.txt", "dummy", StandardCharsets.UTF_8);
+
+		Path dir = Paths.get(tmp.getRoot().toString(), "mirror");
+		Files.createDirectories(dir.resolve("old/sub"));
+		Files.writeString(dir.resolve("old/sub/vanished.txt"), "dummy");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromSite", "localhost",
+							"fromPort", "1234",
+							"fromFile", "/mirror",
+							"fromUser", "joe",
+							"fromPass", "pass",
+							"insecure", "true",
+							"toFile", dir.toString(),
+							"sync", "true",
+							"deleteVanished", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(new String[] { "a.txt" }, dir.toFile().list());
+	}
+
+	@Test
+	public void testSyncEmptyRemote() throws Exception {
+		server.createDirectory("/mirror");
+
+		Path dir = Paths.get(tmp.getRoot().toString(), "mirror");
+		Files.createDirectories(dir);
+		Files.writeString(dir.resolve("keep.txt"), "dummy");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromSite", "localhost",
+							"fromPort", "1234",
+							"fromFile", "/mirror",
+							"fromUser", "joe",
+							"fromPass", "pass",
+							"insecure", "true",
+							"toFile", dir.toString(),
+							"sync", "true",
+							"deleteVanished", "true"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+		assertTrue(Files.exists(dir.resolve("keep.txt")));
+	}
+	
+	@Test
+	public void testRelay() throws Exception {
+		server.putFile("/file.txt", "dummy", StandardCharsets.UTF_8);
+
+		Properties props = new Properties();
+		props.putAll(Map.of("fromSite", "localhost",
+							"fromPort", "1234",
+							"fromFile", "/file.txt",
+							"fromUser", "joe",
+							"fromPass", "pass",
+							"insecure", "true",
+							"toSite", "localhost",
+							"toPort", "1234",
+							"toFile", "/relayed.txt"));
+		props.putAll(Map.of("toUser", "joe",
+							"toPass", "pass"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals("dummy", server.getFileContent("/relayed.txt", StandardCharsets.UTF_8));
+		assertEquals(0, tmp.getRoot().list().length);
+	}
+	
 	@Test
 	public void testUpload() throws Exception {
 		File file = tmp.newFile("file.txt");
@@ -103,4 +495,159 @@ public class SftpBatchletTest extends BatchletTest {
 		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
 		assertTrue("File.txt does not exist", server.existsFile("/file.txt"));		
 	}
+
+	@Test
+	public void testUploadFanOut() throws Exception {
+		File file = tmp.newFile("file.txt");
+		Files.writeString(file.toPath(), "dummy");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("toSite", "localhost,localhost",
+							"toPort", "1234",
+							"toFile", "/file.txt",
+							"toUser", "joe",
+							"toPass", "pass,wrong",
+							"insecure", "true",
+							"fromFile", file.toString(),
+							"minSuccess", "1"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals("dummy", server.getFileContent("/file.txt", StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testUploadFanOutEscapedPassword() throws Exception {
+		server.addUser("jane", "pa,ss");
+
+		File file = tmp.newFile("file.txt");
+		Files.writeString(file.toPath(), "dummy");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("toSite", "localhost,127.0.0.1",
+							"toPort", "1234",
+							"toFile", "/file.txt",
+							"toUser", "joe,jane",
+							"toPass", "pass,pa\\,ss",
+							"insecure", "true",
+							"fromFile", file.toString()));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals("dummy", server.getFileContent("/file.txt", StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testUploadFanOutInvalidPort() throws Exception {
+		File file = tmp.newFile("file.txt");
+		Files.writeString(file.toPath(), "dummy");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("toSite", "localhost:1234,localhost:port",
+							"toFile", "/file.txt",
+							"toUser", "joe",
+							"toPass", "pass",
+							"insecure", "true",
+							"fromFile", file.toString(),
+							"minSuccess", "1"));
+
+		JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+		assertFalse(server.existsFile("/file.txt"));
+	}
+
+	@Test
+	public void testUploadFanOutStalled() throws Exception {
+		byte[] data = new byte[3_000_000];
+		new Random(42).nextBytes(data);
+		File file = tmp.newFile("big.bin");
+		Files.write(file.toPath(), data);
+
+		// accepts connections but never answers
+		List<Socket> held = new CopyOnWriteArrayList<>();
+		try (ServerSocket stalled = new ServerSocket(1235)) {
+			Thread accept = new Thread(() -> {
+				try {
+					while (true) {
+						held.add(stalled.accept());
+					}
+				} catch (IOException ioe) {
+					// server socket closed
+				}
+			});
+			accept.setDaemon(true);
+			accept.start();
+
+			Properties props = new Properties();
+			props.putAll(Map.of("toSite", "localhost:1234,localhost:1235",
+								"toFile", "/big.bin",
+								"toUser", "joe",
+								"toPass", "pass",
+								"insecure", "true",
+								"fromFile", file.toString(),
+								"minSuccess", "1",
+								"stallTimeout", "2"));
+
+			JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+			execution.awaitTermination(20, TimeUnit.SECONDS);
+
+			assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+			assertArrayEquals(data, server.getFileContent("/big.bin"));
+			Properties state = (Properties) execution.getStepExecutions().get(0).getPersistentUserData();
+			// stalled while connecting, or connection timed out
+			assertTrue(state.getProperty("site.localhost:1235").startsWith("FAILED"));
+		} finally {
+			for (Socket socket: held) {
+				socket.close();
+			}
+		}
+	}
+
+	@Test
+	public void testBenchmark() throws Exception {
+		// slow, only run on request: mvn test -Dbenchmark=true
+		assumeTrue(Boolean.getBoolean("benchmark"));
+
+		byte[] data = new byte[8 * 1024 * 1024];
+		new Random(42).nextBytes(data);
+		server.putFile("/bench.bin", data);
+
+		Map<String, Map<String, String>> settings = new LinkedHashMap<>();
+		settings.put("warmup", Map.of());
+		settings.put("default", Map.of());
+		settings.put("compression", Map.of("compression", "true"));
+		settings.put("ciphers", Map.of("ciphers", "aes128-ctr"));
+		settings.put("bulkRequests", Map.of("bulkRequests", "64"));
+		settings.put("socketBufferSize", Map.of("socketBufferSize", String.valueOf(4 * 1024 * 1024)));
+
+		for (Map.Entry<String, Map<String, String>> setting: settings.entrySet()) {
+			Path file = Paths.get(tmp.getRoot().toString(), setting.getKey() + ".bin");
+
+			Properties props = new Properties();
+			props.putAll(Map.of("fromSite", "localhost",
+								"fromPort", "1234",
+								"fromFile", "/bench.bin",
+								"fromUser", "joe",
+								"fromPass", "pass",
+								"insecure", "true",
+								"toFile", file.toString()));
+			props.putAll(setting.getValue());
+
+			JobExecutionImpl execution = startBatchletJob("sftpBatchlet", props);
+			execution.awaitTermination(60, TimeUnit.SECONDS);
+
+			assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+			assertArrayEquals(data, Files.readAllBytes(file));
+
+			Properties metrics = (Properties) execution.getStepExecutions().get(0).getPersistentUserData();
+			logger.log(Level.INFO, "Benchmark {0}: {1} MB/s", 
+						new String[] { setting.getKey(), metrics.getProperty("metrics.mbPerSecond") });
+		}
+	}
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2020, FPS BOSA DG DT
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package be.fedict.batch.batchlets.unpack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Input stream reading ahead from the underlying stream in a separate thread.
+ * Used to decompress an archive while the previous blocks are being parsed and written to disk.
+ * 
+ * @author Bart Hanssens <bart.hanssens@bosa.fgov.be>
+ */
+class ReadAheadInputStream extends InputStream {
+	private static final Block END = new Block(0);
+
+	private final InputStream in;
+	private final BlockingQueue<Block> full;
+	private final BlockingQueue<Block> free;
+	private final Thread reader;
+	private volatile IOException error;
+	private volatile boolean closed;
+	private Block current;
+	private int pos;
+
+	/**
+	 * Block of data read from the underlying stream
+	 */
+	private static class Block {
+		private final byte[] data;
+		private int len;
+
+		Block(int size) {
+			data = new byte[size];
+		}
+	}
+
+	/**
+	 * Fill free blocks from the underlying stream, until the end of the stream
+	 */
+	private void fill() {
+		try {
+			while (!closed) {
+				Block block = free.take();
+				int n = 0;
+				while (n < block.data.length) {
+					int r = in.read(block.data, n, block.data.length - n);
+					if (r < 0) {
+						break;
+					}
+					n += r;
+				}
+				block.len = n;
+				if (n == 0) {
+					break;
+				}
+				full.put(block);
+				if (n < block.data.length) {
+					break;
+				}
+			}
+		} catch (IOException ioe) {
+			error = ioe;
+		} catch (InterruptedException ie) {
+			// closed
+		} finally {
+			// the queue has room for all blocks and the end marker
+			full.offer(END);
+		}
+	}
+
+	/**
+	 * Get the block to read from, waiting for the reader thread if needed
+	 * 
+	 * @return block or null at the end of the stream
+	 * @throws IOException error of the reader thread, thrown again on every call
+	 */
+	private Block next() throws IOException {
+		if (current != null && pos < current.len) {
+			return current;
+		}
+		if (current != END) {
+			if (current != null) {
+				free.offer(current);
+			}
+			try {
+				current = full.take();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Read interrupted");
+			}
+			pos = 0;
+		}
+		if (current == END) {
+			if (error != null) {
+				throw error;
+			}
+			return null;
+		}
+		return current;
+	}
+
+	@Override
+	public int read() throws IOException {
+		Block block = next();
+		return (block != null) ? block.data[pos++] & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		Block block = next();
+		if (block == null) {
+			return -1;
+		}
+		int n = Math.min(len, block.len - pos);
+		System.arraycopy(block.data, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return (current != null && current != END) ? current.len - pos : 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		reader.interrupt();
+		// decompressors are not thread-safe, only close the stream when the reader thread is done
+		boolean interrupted = false;
+		while (reader.isAlive()) {
+			try {
+				reader.join();
+			} catch (InterruptedException ie) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		in.close();
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param in input stream
+	 * @param name name of the reader thread
+	 * @param size size of a block
+	 * @param blocks number of blocks to read ahead
+	 */
+	ReadAheadInputStream(InputStream in, String name, int size, int blocks) {
+		this.in = in;
+		this.full = new ArrayBlockingQueue<>(blocks + 1);
+		this.free = new ArrayBlockingQueue<>(blocks);
+		for (int i = 0; i < blocks; i++) {
+			free.add(new Block(size));
+		}
+		reader = new Thread(this::fill, name);
+		reader.setDaemon(true);
+		reader.start();
+	}
+}
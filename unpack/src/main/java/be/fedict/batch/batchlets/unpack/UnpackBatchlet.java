@@ -25,25 +25,64 @@
  */
 package be.fedict.batch.batchlets.unpack;
 
+import be.fedict.batch.batchlets.common.AtomicFiles;
+import be.fedict.batch.batchlets.common.Checksums;
+import be.fedict.batch.batchlets.common.Manifest;
+import be.fedict.batch.batchlets.common.TransferMetrics;
+import be.fedict.batch.batchlets.common.TransferStats;
+
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 import javax.batch.api.AbstractBatchlet;
 import javax.batch.api.BatchProperty;
 import javax.batch.runtime.BatchStatus;
+import javax.batch.runtime.context.StepContext;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.utils.CloseShieldFilterInputStream;
 import org.apache.commons.compress.utils.IOUtils;
 
 /**
@@ -55,6 +94,16 @@ import org.apache.commons.compress.utils.IOUtils;
 public class UnpackBatchlet extends AbstractBatchlet {
 	private static final Logger logger = Logger.getLogger(UnpackBatchlet.class.getName());
 
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int READ_AHEAD_SIZE = 256 * 1024;
+	private static final int READ_AHEAD_BLOCKS = 4;
+	private static final int MAX_DEPTH = 3;
+
+	// formats detected in nested entries, other signatures are too easily matched by regular files
+	private static final Set<String> NESTED_COMPRESSORS = Set.of(CompressorStreamFactory.GZIP, 
+					CompressorStreamFactory.BZIP2, CompressorStreamFactory.XZ, CompressorStreamFactory.ZSTANDARD);
+	private static final Set<String> NESTED_ARCHIVES = Set.of(ArchiveStreamFactory.ZIP, ArchiveStreamFactory.TAR);
+
 	@Inject
 	@BatchProperty
 	@NotNull
@@ -65,35 +114,710 @@ public class UnpackBatchlet extends AbstractBatchlet {
 	@NotNull
 	File outputDir;
 
-	@Override
-	public String process() throws Exception {
-		logger.log(Level.INFO, "Unpack {0} to {1}", new File[] { inputFile, outputDir } );
+	@Inject
+	@BatchProperty
+	@Positive
+	Integer threads;
+
+	@Inject
+	@BatchProperty
+	@Positive
+	Integer bufferSize;
+
+	@Inject
+	@BatchProperty
+	String include;
+
+	@Inject
+	@BatchProperty
+	String exclude;
+
+	@Inject
+	@BatchProperty
+	boolean incremental;
+
+	@Inject
+	@BatchProperty
+	boolean preallocate;
+
+	@Inject
+	@BatchProperty
+	File manifest;
+
+	@Inject
+	@BatchProperty
+	boolean recursive;
+
+	@Inject
+	@BatchProperty
+	@Positive
+	Integer maxDepth;
+
+	@Inject
+	@BatchProperty
+	boolean atomic;
+
+	@Inject
+	@BatchProperty
+	boolean fsync;
+
+	@Inject
+	StepContext stepContext;
+
+	private TransferMetrics metrics;
+	private int bufSize;
+	private ThreadLocal<byte[]> buffers;
+	private List<PathMatcher> includes;
+	private List<PathMatcher> excludes;
+	private final AtomicInteger extracted = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private Manifest output;
+	private Manifest previous;
+	private int depthLimit;
+
+	/**
+	 * Write the data of an entry to a local file
+	 */
+	@FunctionalInterface
+	private interface Writer {
+		/**
+		 * Write the data to the destination file
+		 * 
+		 * @param dest local file
+		 * @param sums checksums to update, or null
+		 * @return number of bytes written
+		 * @throws IOException 
+		 */
+		long write(Path dest, Checksums sums) throws IOException;
+	}
+
+	/**
+	 * Decompressed file nested in an archive, e.g. a gzipped file inside a ZIP
+	 */
+	private static class NestedEntry implements ArchiveEntry {
+		private final String name;
+		private final Date date;
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public long getSize() {
+			return ArchiveEntry.SIZE_UNKNOWN;
+		}
+
+		@Override
+		public boolean isDirectory() {
+			return false;
+		}
+
+		@Override
+		public Date getLastModifiedDate() {
+			return date;
+		}
+
+		NestedEntry(String name, Date date) {
+			this.name = name;
+			this.date = date;
+		}
+	}
+
+	/**
+	 * Check if the input file is a ZIP file, based on the signature
+	 * 
+	 * @return true if ZIP
+	 * @throws IOException 
+	 */
+	private boolean isZip() throws IOException {
+		byte[] signature = new byte[4];
+		try (InputStream in = Files.newInputStream(inputFile.toPath())) {
+			int len = IOUtils.readFully(in, signature);
+			return ZipArchiveInputStream.matches(signature, len);
+		}
+	}
+
+	/**
+	 * Get path matchers for a comma-separated list of glob patterns
+	 * 
+	 * @param globs glob patterns or null
+	 * @return list of matchers, empty if there are no patterns
+	 */
+	private static List<PathMatcher> getMatchers(String globs) {
+		if (globs == null) {
+			return Collections.emptyList();
+		}
+		return Arrays.stream(globs.split(","))
+					.map(String::trim)
+					.filter(g -> !g.isEmpty())
+					.map(g -> FileSystems.getDefault().getPathMatcher("glob:" + g))
+					.collect(Collectors.toList());
+	}
+
+	/**
+	 * Check if the name of an entry matches the include and exclude patterns
+	 * 
+	 * @param entry archive entry
+	 * @return true if the entry is to be extracted
+	 */
+	private boolean isSelected(ArchiveEntry entry) {
+		Path p = Paths.get(entry.getName());
+		return (includes.isEmpty() || includes.stream().anyMatch(m -> m.matches(p)))
+				&& excludes.stream().noneMatch(m -> m.matches(p));
+	}
+
+	/**
+	 * Calculate the CRC32 checksum of a local file
+	 * 
+	 * @param file local file
+	 * @return checksum
+	 * @throws IOException 
+	 */
+	private long getCrc(Path file) throws IOException {
+		byte[] buffer = buffers.get();
+		CRC32 crc = new CRC32();
+		try (InputStream in = Files.newInputStream(file)) {
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				crc.update(buffer, 0, n);
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Check if a local file has the same size and modification time as the archive entry.
+	 * When only the modification time is different, the CRC32 checksum (if known) is compared.
+	 * 
+	 * @param file local file
+	 * @param entry archive entry
+	 * @return true if the file does not need to be extracted
+	 * @throws IOException 
+	 */
+	private boolean isUnchanged(Path file, ArchiveEntry entry) throws IOException {
+		if (!Files.isRegularFile(file) || Files.size(file) != entry.getSize()) {
+			return false;
+		}
+		Date date = entry.getLastModifiedDate();
+		if (date != null && Files.getLastModifiedTime(file).toMillis() == date.getTime()) {
+			return true;
+		}
+		if (entry instanceof ZipArchiveEntry && ((ZipArchiveEntry) entry).getCrc() >= 0
+				&& getCrc(file) == ((ZipArchiveEntry) entry).getCrc()) {
+			if (date != null) {
+				Files.setLastModifiedTime(file, FileTime.fromMillis(date.getTime()));
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Create a directory, including its parents.
+	 * Another thread may create the same directory at the same time.
+	 * 
+	 * @param dir directory
+	 * @return false if the directory could not be created
+	 */
+	private static boolean makeDirs(File dir) {
+		if (dir.isDirectory() || dir.mkdirs() || dir.isDirectory()) {
+			return true;
+		}
+		logger.log(Level.SEVERE, "Could not create {0}", dir);
+		return false;
+	}
+
+	/**
+	 * Open a local file for writing, optionally preallocating it to its final size
+	 * 
+	 * @param dest local file
+	 * @param size expected size or -1 if unknown
+	 * @return file channel
+	 * @throws IOException 
+	 */
+	private FileChannel openOutput(Path dest, long size) throws IOException {
+		if (preallocate && size > 0) {
+			RandomAccessFile raf = new RandomAccessFile(dest.toFile(), "rw");
+			try {
+				raf.setLength(size);
+			} catch (IOException ioe) {
+				raf.close();
+				throw ioe;
+			}
+			return raf.getChannel();
+		}
+		return FileChannel.open(dest, StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+									StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Copy a stream to a file, using a buffer reused by the current thread for all entries
+	 * 
+	 * @param in input stream
+	 * @param dest local file
+	 * @param size expected size or -1 if unknown
+	 * @param sums checksums to update, or null
+	 * @return number of bytes written
+	 * @throws IOException 
+	 */
+	private long copy(InputStream in, Path dest, long size, Checksums sums) throws IOException {
+		byte[] buffer = buffers.get();
+		long total = 0;
+		try (FileChannel out = openOutput(dest, size)) {
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				if (sums != null) {
+					sums.update(buffer, 0, n);
+				}
+				ByteBuffer buf = ByteBuffer.wrap(buffer, 0, n);
+				while (buf.hasRemaining()) {
+					out.write(buf);
+				}
+				total += n;
+			}
+			if (total < out.size()) {
+				// preallocated for more data than the entry actually contained
+				out.truncate(total);
+			}
+		}
+		return total;
+	}
 
-		try (InputStream in = new BufferedInputStream(Files.newInputStream(inputFile.toPath()), 16 * 1024);
+	/**
+	 * Copy a range of the archive file to a file, without copying the data through the JVM
+	 * 
+	 * @param archive archive file
+	 * @param offset start of the data in the archive
+	 * @param size number of bytes
+	 * @param dest local file
+	 * @return number of bytes written
+	 * @throws IOException 
+	 */
+	private long transfer(FileChannel archive, long offset, long size, Path dest) throws IOException {
+		try (FileChannel out = openOutput(dest, size)) {
+			long pos = 0;
+			while (pos < size) {
+				long n = archive.transferTo(offset + pos, size - pos, out);
+				if (n <= 0) {
+					throw new IOException("Unexpected end of " + inputFile);
+				}
+				pos += n;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Get the path of an extracted file relative to the output directory, as used in the manifest
+	 * 
+	 * @param target extracted file
+	 * @return relative path using '/' as separator
+	 */
+	private String getRelativePath(Path target) {
+		return outputDir.toPath().relativize(target).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Add a file that was not extracted again to the manifest.
+	 * The checksums are taken from the previous manifest when the file did not change, 
+	 * otherwise they are calculated from the file.
+	 * 
+	 * @param target existing file
+	 * @throws IOException 
+	 */
+	private void addUnchanged(Path target) throws IOException {
+		String path = getRelativePath(target);
+		long size = Files.size(target);
+		long modified = Files.getLastModifiedTime(target).toMillis();
+
+		Manifest.Entry old = (previous != null) ? previous.get(path) : null;
+		if (old != null && old.getSize() == size && old.getModified() == modified) {
+			output.put(path, old);
+		} else {
+			Checksums sums = Checksums.of(target, buffers.get());
+			output.put(path, new Manifest.Entry(size, modified, sums.getCrc32(), sums.getSha256()));
+		}
+	}
+
+	/**
+	 * Extract a single entry
+	 * 
+	 * @param dir directory to extract to
+	 * @param entry archive entry
+	 * @param writer writer for the data of the entry, not used for directories
+	 * @return false if a directory could not be created
+	 * @throws IOException 
+	 */
+	private boolean extract(Path dir, ArchiveEntry entry, Writer writer) throws IOException {
+		File outfile = dir.resolve(entry.getName()).toFile();
+		logger.log(Level.FINER, "Extracting {0} to {1}", new String[] { entry.getName(), outfile.toString() });
+
+		if (entry.isDirectory()) {
+			return makeDirs(outfile);
+		}
+		if (!makeDirs(outfile.getParentFile())) {
+			return false;
+		}
+		Path target = outfile.toPath();
+		if (incremental && isUnchanged(target, entry)) {
+			logger.log(Level.FINER, "Skipping unchanged {0}", target);
+			skipped.incrementAndGet();
+			if (output != null) {
+				addUnchanged(target);
+			}
+			return true;
+		}
+		Checksums sums = (output != null) ? new Checksums() : null;
+		Path dest = atomic ? AtomicFiles.createTemp(target) : target;
+		long size;
+		try {
+			size = writer.write(dest, sums);
+			metrics.add(size);
+			// incremental extraction compares modification times, otherwise keep the extraction time
+			Date date = entry.getLastModifiedDate();
+			if (incremental && date != null) {
+				Files.setLastModifiedTime(dest, FileTime.fromMillis(date.getTime()));
+			}
+			if (atomic) {
+				AtomicFiles.commit(dest, target, fsync);
+			} else if (fsync) {
+				AtomicFiles.sync(target);
+			}
+		} finally {
+			if (atomic) {
+				Files.deleteIfExists(dest);
+			}
+		}
+		if (output != null) {
+			output.put(getRelativePath(target), new Manifest.Entry(size, Files.getLastModifiedTime(target).toMillis(),
+												sums.getCrc32(), sums.getSha256()));
+		}
+		extracted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Open the input file, adding a decompression layer when the file is compressed (e.g. tar.gz).
+	 * Decompression is done in a separate thread, reading ahead of the archive parsing.
+	 * 
+	 * @return input stream
+	 * @throws IOException
+	 * @throws CompressorException 
+	 */
+	private InputStream openStream() throws IOException, CompressorException {
+		InputStream in = new BufferedInputStream(Files.newInputStream(inputFile.toPath()), bufSize);
+		String format;
+		try {
+			format = CompressorStreamFactory.detect(in);
+		} catch (CompressorException ce) {
+			// not compressed
+			return in;
+		}
+		logger.log(Level.INFO, "Decompressing {0}", format);
+		try {
+			InputStream decompressed = new CompressorStreamFactory(true).createCompressorInputStream(format, in);
+			return new BufferedInputStream(new ReadAheadInputStream(decompressed, "unpack-read-ahead", 
+												READ_AHEAD_SIZE, READ_AHEAD_BLOCKS), bufSize);
+		} catch (CompressorException ce) {
+			in.close();
+			throw ce;
+		}
+	}
+
+	/**
+	 * Unpack an archive sequentially, for formats without random access
+	 * 
+	 * @return false on error
+	 * @throws Exception 
+	 */
+	private boolean unpackStream() throws Exception {
+		try (InputStream in = openStream();
 			ArchiveInputStream archive = new ArchiveStreamFactory().createArchiveInputStream(in)) {
+			return unpackEntries(outputDir.toPath(), archive, 0);
+		}
+	}
+
+	/**
+	 * Extract all entries of an archive stream.
+	 * The include and exclude patterns only apply to the entries of the input file itself.
+	 * 
+	 * @param dir directory to extract to
+	 * @param archive archive stream
+	 * @param depth nesting level of the archive
+	 * @return false on error
+	 * @throws IOException 
+	 */
+	private boolean unpackEntries(Path dir, ArchiveInputStream archive, int depth) throws IOException {
+		ArchiveEntry entry = archive.getNextEntry();
+		while (entry != null) {
+			// the data of entries that are not extracted is skipped by the next call
+			if (depth > 0 || isSelected(entry)) {
+				if (!archive.canReadEntryData(entry)) {
+					logger.log(Level.SEVERE, "Cannot read data of entry {0} (unsupported method or encryption)", 
+								entry.getName());
+					return false;
+				}
+				if (!extractStream(dir, entry, archive, depth)) {
+					return false;
+				}
+			}
+			entry = archive.getNextEntry();
+		}
+		return true;
+	}
+
+	/**
+	 * Detect the compression format of a nested entry
+	 * 
+	 * @param in input stream supporting mark
+	 * @return format or null if not compressed
+	 */
+	private static String detectCompressor(InputStream in) {
+		try {
+			String format = CompressorStreamFactory.detect(in);
+			return NESTED_COMPRESSORS.contains(format) ? format : null;
+		} catch (CompressorException ce) {
+			return null;
+		}
+	}
+
+	/**
+	 * Detect the archive format of a nested entry
+	 * 
+	 * @param in input stream supporting mark
+	 * @return format or null if not an archive
+	 */
+	private static String detectArchiver(InputStream in) {
+		try {
+			String format = ArchiveStreamFactory.detect(in);
+			return NESTED_ARCHIVES.contains(format) ? format : null;
+		} catch (ArchiveException ae) {
+			return null;
+		}
+	}
+
+	/**
+	 * Remove the extension (if any) from the file name of a path
+	 * 
+	 * @param name path
+	 * @return path without extension
+	 */
+	private static String stripExtension(String name) {
+		int dot = name.lastIndexOf('.');
+		return (dot > name.lastIndexOf('/') + 1) ? name.substring(0, dot) : name;
+	}
 
-			ArchiveEntry entry = archive.getNextEntry();
-			while (entry != null) {
-				File outfile = Paths.get(outputDir.toString(), entry.getName()).toFile();
-				logger.log(Level.FINER, "Extracting {0} to {1}", new String[] { entry.getName(), outfile.toString() });
-
-				if (entry.isDirectory()) {
-					if (!outfile.isDirectory() && ! outfile.mkdirs()) {
-						logger.log(Level.SEVERE, "Could not create {0}", outfile);
-						return BatchStatus.FAILED.toString();
-					} 
-				} else {
-					File parent = outfile.getParentFile();
-					if (!parent.isDirectory() && !parent.mkdirs()) {
-						logger.log(Level.SEVERE, "Could not create {0}", parent);
-						return BatchStatus.FAILED.toString();
-					}
-					try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(outfile.toPath()), 16 * 1024)) {
-						IOUtils.copy(archive, out);
-					}
+	/**
+	 * Extract an entry from a stream.
+	 * In recursive mode, nested archives and compressed files are detected by their signature
+	 * and unpacked straight from the stream, without writing the nested archive to disk.
+	 * A nested archive is extracted into a directory with the name of the archive without extension.
+	 * 
+	 * @param dir directory to extract to
+	 * @param entry archive entry
+	 * @param in input stream of the entry
+	 * @param depth nesting level of the entry
+	 * @return false on error
+	 * @throws IOException 
+	 */
+	private boolean extractStream(Path dir, ArchiveEntry entry, InputStream in, int depth) throws IOException {
+		if (!recursive || depth >= depthLimit || entry.isDirectory()) {
+			long size = entry.getSize();
+			return extract(dir, entry, (dest, sums) -> copy(in, dest, size, sums));
+		}
+		// closing the nested streams must not close the stream of the parent archive
+		InputStream data = new BufferedInputStream(new CloseShieldFilterInputStream(in), bufSize);
+		ArchiveEntry file = entry;
+
+		String compressor = detectCompressor(data);
+		if (compressor != null) {
+			logger.log(Level.FINE, "Decompressing nested {0}", entry.getName());
+			try {
+				data = new BufferedInputStream(new CompressorStreamFactory(true)
+								.createCompressorInputStream(compressor, data), bufSize);
+			} catch (CompressorException ce) {
+				throw new IOException(ce);
+			}
+			file = new NestedEntry(stripExtension(entry.getName()), entry.getLastModifiedDate());
+		}
+
+		// release the (native) resources of the decompressor, the parent stream is shielded
+		try (InputStream src = data) {
+			String archiver = detectArchiver(src);
+			if (archiver != null) {
+				logger.log(Level.FINE, "Extracting nested {0}", entry.getName());
+				Path nested = dir.resolve(stripExtension(file.getName()));
+				try (ArchiveInputStream archive = new ArchiveStreamFactory().createArchiveInputStream(archiver, src)) {
+					return unpackEntries(nested, archive, depth + 1);
+				} catch (ArchiveException ae) {
+					throw new IOException(ae);
 				}
-				entry = archive.getNextEntry();
 			}
+
+			long size = file.getSize();
+			return extract(dir, file, (dest, sums) -> copy(src, dest, size, sums));
+		}
+	}
+
+	/**
+	 * Check if the file system of the output directory has enough usable space left
+	 * 
+	 * @param required number of bytes required
+	 * @return false if there is not enough space
+	 * @throws IOException 
+	 */
+	private boolean hasSpace(long required) throws IOException {
+		long usable = Files.getFileStore(outputDir.toPath()).getUsableSpace();
+		if (required > usable) {
+			logger.log(Level.SEVERE, "Not enough space on {0}: {1} bytes needed, {2} available", 
+									new Object[] { outputDir, required, usable });
+			return false;
+		}
+		logger.log(Level.FINE, "{0} bytes needed, {1} available", new Object[] { required, usable });
+		return true;
+	}
+
+	/**
+	 * Get the writer for a ZIP entry.
+	 * Entries that are stored without compression are copied directly from the archive file,
+	 * unless the checksums are needed for the manifest.
+	 * 
+	 * @param zip ZIP file
+	 * @param channel channel of the ZIP file
+	 * @param entry ZIP entry
+	 * @return writer
+	 */
+	private Writer zipWriter(ZipFile zip, FileChannel channel, ZipArchiveEntry entry) {
+		if (output == null && entry.getMethod() == ZipMethod.STORED.getCode() && zip.canReadEntryData(entry) 
+				&& entry.getDataOffset() > 0 && entry.getSize() >= 0) {
+			return (dest, sums) -> transfer(channel, entry.getDataOffset(), entry.getSize(), dest);
+		}
+		return (dest, sums) -> {
+			try (InputStream in = zip.getInputStream(entry)) {
+				return copy(in, dest, entry.getSize(), sums);
+			}
+		};
+	}
+
+	/**
+	 * Extract a ZIP entry, unpacking nested archives in recursive mode
+	 * 
+	 * @param zip ZIP file
+	 * @param channel channel of the ZIP file
+	 * @param entry ZIP entry
+	 * @return false on error
+	 * @throws IOException 
+	 */
+	private boolean extractZip(ZipFile zip, FileChannel channel, ZipArchiveEntry entry) throws IOException {
+		if (!recursive) {
+			return extract(outputDir.toPath(), entry, zipWriter(zip, channel, entry));
+		}
+		try (InputStream in = zip.getInputStream(entry)) {
+			return extractStream(outputDir.toPath(), entry, in, 0);
+		}
+	}
+
+	/**
+	 * Unpack a ZIP file using its central directory, inflating multiple entries in parallel.
+	 * The sizes in the central directory are used to check if there is enough space before extracting.
+	 * Directories are created first, the files are read in the order they are stored in the archive.
+	 * 
+	 * @return false on error
+	 * @throws IOException 
+	 */
+	private boolean unpackZip() throws IOException {
+		int nrThreads = (threads != null) ? threads : Runtime.getRuntime().availableProcessors();
+
+		try (FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+			ZipFile zip = new ZipFile(channel, inputFile.toString(), "UTF8", true)) {
+			if (!makeDirs(outputDir)) {
+				return false;
+			}
+			List<ZipArchiveEntry> dirs = new ArrayList<>();
+			List<ZipArchiveEntry> files = new ArrayList<>();
+			for (ZipArchiveEntry entry: Collections.list(zip.getEntriesInPhysicalOrder())) {
+				if (isSelected(entry)) {
+					(entry.isDirectory() ? dirs : files).add(entry);
+				}
+			}
+			if (!hasSpace(files.stream().mapToLong(ZipArchiveEntry::getSize).filter(l -> l > 0).sum())) {
+				return false;
+			}
+			for (ZipArchiveEntry entry: dirs) {
+				if (!extract(outputDir.toPath(), entry, null)) {
+					return false;
+				}
+			}
+			logger.log(Level.INFO, "Extracting {0} files using {1} threads", new Object[] { files.size(), nrThreads });
+
+			ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+			try {
+				List<Future<Boolean>> futures = new ArrayList<>(files.size());
+				for (ZipArchiveEntry entry: files) {
+					futures.add(executor.submit(() -> extractZip(zip, channel, entry)));
+				}
+				boolean ok = true;
+				for (Future<Boolean> f: futures) {
+					ok &= f.get();
+				}
+				return ok;
+			} catch (ExecutionException ee) {
+				throw new IOException(ee.getCause());
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Extraction interrupted");
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Get the persistent user data of the step
+	 * 
+	 * @return properties
+	 */
+	private Properties getState() {
+		Serializable data = stepContext.getPersistentUserData();
+		Properties props = (data instanceof Properties) ? (Properties) data : new Properties();
+		stepContext.setPersistentUserData(props);
+		return props;
+	}
+
+	@Override
+	public String process() throws Exception {
+		logger.log(Level.INFO, "Unpack {0} to {1}", new File[] { inputFile, outputDir } );
+
+		metrics = new TransferMetrics();
+		bufSize = (bufferSize != null) ? bufferSize : BUFFER_SIZE;
+		buffers = ThreadLocal.withInitial(() -> new byte[bufSize]);
+		includes = getMatchers(include);
+		excludes = getMatchers(exclude);
+		extracted.set(0);
+		skipped.set(0);
+		depthLimit = (maxDepth != null) ? maxDepth : MAX_DEPTH;
+		output = (manifest != null) ? new Manifest() : null;
+		previous = (manifest != null && incremental && manifest.isFile()) ? Manifest.read(manifest.toPath()) : null;
+		try {
+			boolean ok = isZip() ? unpackZip() : unpackStream();
+			if (!ok) {
+				return BatchStatus.FAILED.toString();
+			}
+			if (output != null) {
+				output.write(manifest.toPath());
+				logger.log(Level.INFO, "Manifest written to {0}", manifest);
+			}
+		} finally {
+			logger.log(Level.INFO, "{0} files extracted, {1} unchanged", new Object[] { extracted.get(), skipped.get() });
+			Properties state = getState();
+			state.setProperty("unpack.extracted", String.valueOf(extracted.get()));
+			state.setProperty("unpack.skipped", String.valueOf(skipped.get()));
+
+			metrics.finish();
+			metrics.publish(stepContext);
+			TransferStats.get(UnpackBatchlet.class.getSimpleName()).add(metrics);
+			logger.log(Level.INFO, "Extracted {0}", metrics.getSummary());
 		}
 		return BatchStatus.COMPLETED.toString();
 	}
@@ -25,22 +25,37 @@
  */
 package be.fedict.batch.batchlets.unpack;
 
+import be.fedict.batch.batchlets.common.Manifest;
 import be.fedict.batch.batchlets.test.BatchletTest;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import javax.batch.runtime.BatchStatus;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.jberet.runtime.JobExecutionImpl;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -92,4 +107,373 @@ public class UnpackBatchletTest extends BatchletTest {
 		assertTrue(file1 + " does not exist", Files.exists(file1));
 		assertTrue(file2 + " does not exist", Files.exists(file2));
 	}
+
+	@Test
+	public void testUnpackZipAtomic() throws Exception {
+		String root = tmp.getRoot().toString();
+		File file = Paths.get(root, "test.zip").toFile();
+		File dir = Paths.get(root, "extract").toFile();
+
+		Properties props = new Properties();
+		props.putAll(Map.of("inputFile", file.toString(),
+							"outputDir", dir.toString(),
+							"atomic", "true"));
+
+		JobExecutionImpl execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(new String[] { "file1.txt", "file2.txt" }, dir.list((d, n) -> true));
+	}
+
+	@Test
+	public void testUnpackZipAtomicPermissions() throws Exception {
+		assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+
+		String root = tmp.getRoot().toString();
+		File file = Paths.get(root, "test.zip").toFile();
+		File dir = Paths.get(root, "extract").toFile();
+		Path manifest = Paths.get(root, "manifest.tsv");
+		Path plain = Files.createFile(Paths.get(root, "plain.txt"));
+
+		// permissions of existing files are kept
+		Path file2 = Files.createDirectories(dir.toPath()).resolve("file2.txt");
+		Files.createFile(file2);
+		Files.setPosixFilePermissions(file2, PosixFilePermissions.fromString("rw-r-----"));
+
+		Properties props = new Properties();
+		props.putAll(Map.of("inputFile", file.toString(),
+							"outputDir", dir.toString(),
+							"manifest", manifest.toString(),
+							"atomic", "true"));
+
+		JobExecutionImpl execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals(Files.getPosixFilePermissions(plain), 
+					Files.getPosixFilePermissions(dir.toPath().resolve("file1.txt")));
+		assertEquals(Files.getPosixFilePermissions(plain), Files.getPosixFilePermissions(manifest));
+		assertEquals(PosixFilePermissions.fromString("rw-r-----"), Files.getPosixFilePermissions(file2));
+	}
+
+	@Test
+	public void testUnpackZipParallel() throws Exception {
+		String root = tmp.getRoot().toString();
+		File file = Paths.get(root, "many.zip").toFile();
+		File dir = Paths.get(root, "extract").toFile();
+
+		try(ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(file))) {
+			for (int i = 0; i < 100; i++) {
+				zout.putNextEntry(new ZipEntry("dir" + (i % 5) + "/file" + i + ".txt"));
+				zout.write(("content" + i).getBytes());
+				zout.closeEntry();
+			}
+		}
+
+		Properties props = new Properties();
+		props.putAll(Map.of("inputFile", file.toString(),
+							"outputDir", dir.toString(),
+							"threads", "4"));
+
+		JobExecutionImpl execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		for (int i = 0; i < 100; i++) {
+			Path p = Paths.get(root, "extract", "dir" + (i % 5), "file" + i + ".txt");
+			assertEquals("content" + i, Files.readString(p));
+		}
+	}
+
+	@Test
+	public void testUnpackZipPreallocated() throws Exception {
+		String root = tmp.getRoot().toString();
+		File file = Paths.get(root, "test.zip").toFile();
+		File dir = Paths.get(root, "extract").toFile();
+
+		Properties props = new Properties();
+		props.putAll(Map.of("inputFile", file.toString(),
+							"outputDir", dir.toString(),
+							"preallocate", "true"));
+
+		JobExecutionImpl execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals("content1", Files.readString(Paths.get(root, "extract", "file1.txt")));
+		assertEquals("content2", Files.readString(Paths.get(root, "extract", "file2.txt")));
+	}
+
+	@Test
+	public void testUnpackZipFiltered() throws Exception {
+		String root = tmp.getRoot().toString();
+		File file = Paths.get(root, "test.zip").toFile();
+		File dir = Paths.get(root, "extract").toFile();
+
+		Properties props = new Properties();
+		props.putAll(Map.of("inputFile", file.toString(),
+							"outputDir", dir.toString(),
+							"include", "*.txt",
+							"exclude", "file1.*"));
+
+		JobExecutionImpl execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(new String[] { "file2.txt" }, dir.list());
+	}
+
+	@Test
+	public void testUnpackZipIncremental() throws Exception {
+		String root = tmp.getRoot().toString();
+		File file = Paths.get(root, "test.zip").toFile();
+		File dir = Paths.get(root, "extract").toFile();
+		Path file1 = Paths.get(root, "extract", "file1.txt");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("inputFile", file.toString(),
+							"outputDir", dir.toString(),
+							"incremental", "true"));
+
+		JobExecutionImpl execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+
+		// same size, different content
+		Files.writeString(file1, "changed1");
+		Files.setLastModifiedTime(file1, FileTime.fromMillis(0));
+
+		execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+
+		Properties state = (Properties) execution.getStepExecutions().get(0).getPersistentUserData();
+		assertEquals("1", state.getProperty("unpack.extracted"));
+		assertEquals("1", state.getProperty("unpack.skipped"));
+		assertEquals("content1", Files.readString(file1));
+	}
+
+	@Test
+	public void testUnpackZipExtractionTime() throws Exception {
+		String root = tmp.getRoot().toString();
+		File file = tmp.newFile("old.zip");
+		File dir = Paths.get(root, "extract").toFile();
+		Path file1 = Paths.get(root, "extract", "old.txt");
+
+		try(ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(file))) {
+			ZipEntry entry = new ZipEntry("old.txt");
+			// 1 January 2000
+			entry.setTime(946684800000L);
+			zout.putNextEntry(entry);
+			zout.write("old content".getBytes());
+			zout.closeEntry();
+		}
+
+		Properties props = new Properties();
+		props.putAll(Map.of("inputFile", file.toString(),
+							"outputDir", dir.toString()));
+
+		long start = System.currentTimeMillis();
+		JobExecutionImpl execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		// not the time of the entry in the archive
+		assertTrue(Files.getLastModifiedTime(file1).toMillis() >= start - 2000);
+	}
+
+	@Test
+	public void testUnpackZipManifest() throws Exception {
+		String root = tmp.getRoot().toString();
+		File file = Paths.get(root, "test.zip").toFile();
+		File dir = Paths.get(root, "extract").toFile();
+		Path manifest = Paths.get(root, "manifest.tsv");
+
+		Properties props = new Properties();
+		props.putAll(Map.of("inputFile", file.toString(),
+							"outputDir", dir.toString(),
+							"manifest", manifest.toString()));
+
+		JobExecutionImpl execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		Manifest.Entry entry = Manifest.read(manifest).get("file1.txt");
+		assertEquals(8, entry.getSize());
+		// SHA-256 of "content1"
+		assertEquals("d0b425e00e15a0d36b9b361f02bab63563aed6cb4665083905386c55d5b679fa", entry.getSha256());
+		assertEquals(Files.getLastModifiedTime(Paths.get(root, "extract", "file1.txt")).toMillis(), entry.getModified());
+	}
+
+	@Test
+	public void testUnpackZipStored() throws Exception {
+		String root = tmp.getRoot().toString();
+		File file = Paths.get(root, "stored.zip").toFile();
+		File dir = Paths.get(root, "extract").toFile();
+
+		byte[] data = "stored content".getBytes();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		try(ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(file))) {
+			ZipEntry entry = new ZipEntry("stored.txt");
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(data.length);
+			entry.setCrc(crc.getValue());
+			zout.putNextEntry(entry);
+			zout.write(data);
+			zout.closeEntry();
+
+			zout.putNextEntry(new ZipEntry("deflated.txt"));
+			zout.write(data);
+			zout.closeEntry();
+		}
+
+		Properties props = new Properties();
+		props.putAll(Map.of("inputFile", file.toString(),
+							"outputDir", dir.toString(),
+							"bufferSize", "4"));
+
+		JobExecutionImpl execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertArrayEquals(data, Files.readAllBytes(Paths.get(root, "extract", "stored.txt")));
+		assertArrayEquals(data, Files.readAllBytes(Paths.get(root, "extract", "deflated.txt")));
+	}
+
+	@Test
+	public void testUnpackTarGz() throws Exception {
+		String root = tmp.getRoot().toString();
+		File file = Paths.get(root, "test.tar.gz").toFile();
+		File dir = Paths.get(root, "extract").toFile();
+
+		try(TarArchiveOutputStream tout = new TarArchiveOutputStream(
+									new GzipCompressorOutputStream(new FileOutputStream(file)))) {
+			byte[] data = "content1".getBytes();
+			TarArchiveEntry entry = new TarArchiveEntry("dir/file1.txt");
+			entry.setSize(data.length);
+			tout.putArchiveEntry(entry);
+			tout.write(data);
+			tout.closeArchiveEntry();
+		}
+
+		Properties props = new Properties();
+		props.putAll(Map.of("inputFile", file.toString(),
+							"outputDir", dir.toString()));
+
+		JobExecutionImpl execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals("content1", Files.readString(Paths.get(root, "extract", "dir", "file1.txt")));
+	}
+
+	@Test
+	public void testUnpackZipRecursive() throws Exception {
+		String root = tmp.getRoot().toString();
+		File file = Paths.get(root, "test.zip").toFile();
+		File dir = Paths.get(root, "extract").toFile();
+
+		ByteArrayOutputStream gz = new ByteArrayOutputStream();
+		try(GzipCompressorOutputStream gout = new GzipCompressorOutputStream(gz)) {
+			gout.write("id,region\n1,brussels\n".getBytes());
+		}
+		ByteArrayOutputStream nested = new ByteArrayOutputStream();
+		try(ZipOutputStream zout = new ZipOutputStream(nested)) {
+			zout.putNextEntry(new ZipEntry("data.csv.gz"));
+			zout.write(gz.toByteArray());
+			zout.closeEntry();
+		}
+		try(ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(file))) {
+			zout.putNextEntry(new ZipEntry("regions/brussels.zip"));
+			zout.write(nested.toByteArray());
+			zout.closeEntry();
+		}
+
+		Properties props = new Properties();
+		props.putAll(Map.of("inputFile", file.toString(),
+							"outputDir", dir.toString(),
+							"recursive", "true"));
+
+		JobExecutionImpl execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+		assertEquals("id,region\n1,brussels\n", 
+			Files.readString(Paths.get(root, "extract", "regions", "brussels", "data.csv")));
+		assertFalse(Paths.get(root, "extract", "regions", "brussels.zip").toFile().exists());
+	}
+
+	@Test
+	public void testUnpackZipRecursiveEncrypted() throws Exception {
+		String root = tmp.getRoot().toString();
+		File file = Paths.get(root, "test.zip").toFile();
+		File dir = Paths.get(root, "extract").toFile();
+
+		ByteArrayOutputStream nested = new ByteArrayOutputStream();
+		try(ZipOutputStream zout = new ZipOutputStream(nested)) {
+			zout.putNextEntry(new ZipEntry("secret.txt"));
+			zout.write("secret".getBytes());
+			zout.closeEntry();
+		}
+		// set the encryption flag in the local file header and the central directory
+		byte[] data = nested.toByteArray();
+		data[6] |= 1;
+		for (int i = data.length - 22; i >= 0; i--) {
+			if (data[i] == 'P' && data[i + 1] == 'K' && data[i + 2] == 1 && data[i + 3] == 2) {
+				data[i + 8] |= 1;
+				break;
+			}
+		}
+		try(ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(file))) {
+			zout.putNextEntry(new ZipEntry("secret.zip"));
+			zout.write(data);
+			zout.closeEntry();
+		}
+
+		Properties props = new Properties();
+		props.putAll(Map.of("inputFile", file.toString(),
+							"outputDir", dir.toString(),
+							"recursive", "true"));
+
+		JobExecutionImpl execution = this.startBatchletJob("unpackBatchlet", props);
+		execution.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+	}
+
+	@Test
+	public void testReadAheadError() throws Exception {
+		AtomicBoolean readAfterClose = new AtomicBoolean();
+		AtomicBoolean closed = new AtomicBoolean();
+		InputStream broken = new InputStream() {
+			private int n;
+
+			@Override
+			public int read() throws IOException {
+				if (closed.get()) {
+					readAfterClose.set(true);
+				}
+				if (n++ < 10) {
+					return 'a';
+				}
+				throw new IOException("Broken stream");
+			}
+
+			@Override
+			public void close() {
+				closed.set(true);
+			}
+		};
+
+		InputStream in = new ReadAheadInputStream(broken, "test-read-ahead", 4, 2);
+		assertThrows(IOException.class, () -> in.readAllBytes());
+		// the error must not turn into the end of the stream
+		assertThrows(IOException.class, () -> in.read());
+		in.close();
+		assertTrue(closed.get());
+		assertFalse("Stream read after close", readAfterClose.get());
+	}
 }
@@ -25,12 +25,17 @@
  */
 package be.fedict.batch.batchlets.verifyfile;
 
+import be.fedict.batch.batchlets.common.Manifest;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -98,6 +103,12 @@ public class VerifyFileBatchlet extends AbstractBatchlet {
 	@BatchProperty
 	Long maxAgeDays;
 
+	@Inject
+	@BatchProperty
+	File manifest;
+
+	private Map<File, Manifest.Entry> expected;
+
 	/**
 	 * Get the file or list of files to validate
 	 * 
@@ -124,6 +135,50 @@ public class VerifyFileBatchlet extends AbstractBatchlet {
 		return null;
 	}
 
+	/**
+	 * Get the list of files in a manifest (e.g. written by UnpackBatchlet), 
+	 * relative to the directory or to the location of the manifest
+	 * 
+	 * @return array of files or null
+	 */
+	private File[] getManifestFiles() {
+		Manifest m;
+		try {
+			m = Manifest.read(manifest.toPath());
+		} catch (IOException ioe) {
+			logger.log(Level.SEVERE, "Could not read manifest {0}: {1}", new String[] { manifest.toString(), ioe.getMessage() });
+			return null;
+		}
+		Path base = (directory != null) ? directory.toPath() : manifest.getAbsoluteFile().getParentFile().toPath();
+
+		expected = new LinkedHashMap<>();
+		for (Map.Entry<String, Manifest.Entry> e: m.getEntries().entrySet()) {
+			File f = base.resolve(e.getKey()).toFile();
+			if (filterPattern == null || filterPattern.matcher(f.getName()).matches()) {
+				expected.put(f, e.getValue());
+			}
+		}
+		return expected.keySet().toArray(new File[0]);
+	}
+
+	/**
+	 * Verify the size and modification time of a file against the manifest
+	 * 
+	 * @param f
+	 * @return 
+	 */
+	private boolean checkManifest(File f) {
+		if (expected == null) {
+			return true;
+		}
+		Manifest.Entry e = expected.get(f);
+		if (f.length() != e.getSize() || f.lastModified() != e.getModified()) {
+			logger.log(Level.SEVERE, "File {0} does not match manifest", f);
+			return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Verify if a file exists
 	 * 
@@ -245,8 +300,8 @@ public class VerifyFileBatchlet extends AbstractBatchlet {
 	@Override
 	public String process() throws Exception {
 		logger.log(Level.INFO, "Start file verification");
-		
-		File[] files = getFiles();
+
+		File[] files = (manifest != null) ? getManifestFiles() : getFiles();
 
 		if (files == null || files.length == 0) {
 			logger.log(Level.SEVERE, "No files found");
@@ -255,7 +310,7 @@ public class VerifyFileBatchlet extends AbstractBatchlet {
 
 		for (File f: files) {
 			logger.log(Level.INFO, "Checking {0}", f);
-			if (!checkExists(f) || !checkSize(f) || !checkDate(f) || !checkAge(f) || !checkMatch(f)) {
+			if (!checkExists(f) || !checkManifest(f) || !checkSize(f) || !checkDate(f) || !checkAge(f) || !checkMatch(f)) {
 				return BatchStatus.FAILED.toString();
 			}
 		}
@@ -26,8 +26,10 @@
 
 package be.fedict.batch.batchlets.verifyfile;
 
+import be.fedict.batch.batchlets.common.Manifest;
 import be.fedict.batch.batchlets.test.BatchletTest;
 import java.io.File;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.Period;
@@ -316,4 +318,28 @@ public class VerifyFileBatchletTest extends BatchletTest {
 
 		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
 	}
+
+	@Test
+	public void testManifest() throws Exception {
+		File dir = tmp.newFolder("extracted", "sub");
+		File f18 = new File(dir, "file18.txt");
+		Files.writeString(f18.toPath(), "content");
+
+		Manifest manifest = new Manifest();
+		manifest.put("sub/file18.txt", new Manifest.Entry(7, f18.lastModified(), "", ""));
+		manifest.write(Paths.get(tmp.getRoot().toString(), "extracted", "manifest.tsv"));
+
+		Properties props = new Properties();
+		props.put("manifest", Paths.get(tmp.getRoot().toString(), "extracted", "manifest.tsv").toString());
+
+		JobExecutionImpl execution = startBatchletJob("verifyFileBatchlet", props);
+		execution.awaitTermination(4, TimeUnit.SECONDS);
+		assertEquals(BatchStatus.COMPLETED, execution.getBatchStatus());
+
+		Files.writeString(f18.toPath(), "changed content");
+
+		execution = startBatchletJob("verifyFileBatchlet", props);
+		execution.awaitTermination(4, TimeUnit.SECONDS);
+		assertEquals(BatchStatus.FAILED, execution.getBatchStatus());
+	}
 }